@@ -0,0 +1,362 @@
+package com.bitifyware.zipviewer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent catalog of the archives in private storage
+ * The archive list is read from this database instead of listing the archives
+ * directory and stat-ing every file on each resume. A FileObserver on the directory
+ * keeps the catalog up to date as archives are imported, replaced or deleted, and the
+ * whole directory is only compared with the catalog once per process start.
+ * Besides what the file system knows, the catalog keeps the view count, how
+ * far the archive was indexed, the content hash that imports are compared with and
+ * the thumbnail cache key of the first image, so the list can show covers without
+ * opening archives.
+ * Queries and updates block, call them on a worker thread. The observer updates the
+ * catalog on its own thread.
+ */
+public class ArchiveCatalog extends SQLiteOpenHelper {
+
+    // Nothing is known about the entries yet
+    public static final int INDEX_NONE = 0;
+    // The central directory was indexed
+    public static final int INDEX_BUILT = 1;
+    // Every entry was classified, the image list is known
+    public static final int INDEX_CLASSIFIED = 2;
+
+    private static final String DATABASE_NAME = "archive_catalog.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "archives";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_MODIFIED = "modified";
+    private static final String COLUMN_VIEW_COUNT = "view_count";
+    private static final String COLUMN_INDEX_STATUS = "index_status";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
+    private static final String COLUMN_COVER_KEY = "cover_key";
+
+    private static final String[] COLUMNS = {COLUMN_NAME, COLUMN_SIZE, COLUMN_MODIFIED, COLUMN_VIEW_COUNT,
+            COLUMN_INDEX_STATUS, COLUMN_COVER_KEY};
+
+    private static final int OBSERVED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+    /**
+     * Receives catalog changes caused by the file system
+     */
+    public interface Listener {
+        /**
+         * Called on the observer thread after the catalog was updated
+         */
+        void onCatalogChanged();
+    }
+
+    private static ArchiveCatalog instance;
+
+    private final File archivesDir;
+    private final FileObserver observer;
+    private volatile Listener listener;
+    // Incremented on every change, lets screens skip queries when nothing changed
+    private final AtomicInteger version = new AtomicInteger();
+    private boolean synced;
+
+    public static synchronized ArchiveCatalog getInstance(Context context) {
+        if (instance == null) {
+            instance = new ArchiveCatalog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @SuppressWarnings("deprecation")
+    private ArchiveCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        archivesDir = new File(context.getFilesDir(), "archives");
+        if (!archivesDir.exists()) {
+            archivesDir.mkdirs();
+        }
+        // The File constructor needs API 29, the path one does the same
+        observer = new FileObserver(archivesDir.getPath(), OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                onFileEvent(event & FileObserver.ALL_EVENTS, path);
+            }
+        };
+        observer.startWatching();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_NAME + " TEXT PRIMARY KEY, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_VIEW_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_INDEX_STATUS + " INTEGER NOT NULL DEFAULT " + INDEX_NONE + ", "
+                + COLUMN_CONTENT_HASH + " TEXT, "
+                + COLUMN_COVER_KEY + " TEXT)");
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_SIZE + " ON " + TABLE + " (" + COLUMN_SIZE + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one schema version so far
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stop sending changes to a listener, unless another one was set since
+     */
+    public void removeListener(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    public int getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Compare the catalog with the archives directory once per process, to pick up
+     * changes made while nothing was observing it
+     */
+    public synchronized void syncOnce() {
+        if (synced) {
+            return;
+        }
+        synced = true;
+        Map<String, long[]> known = new HashMap<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE,
+                new String[]{COLUMN_NAME, COLUMN_SIZE, COLUMN_MODIFIED}, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                known.put(cursor.getString(0), new long[]{cursor.getLong(1), cursor.getLong(2)});
+            }
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            File[] files = archivesDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!isArchive(file)) {
+                        continue;
+                    }
+                    long[] state = known.remove(file.getName());
+                    if (state == null || state[0] != file.length() || state[1] != file.lastModified()) {
+                        putFile(db, file);
+                    }
+                }
+            }
+            for (String name : known.keySet()) {
+                db.delete(TABLE, COLUMN_NAME + " = ?", new String[]{name});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return All cataloged archives, sorted by name
+     */
+    public List<ArchiveItem> queryArchives() {
+        List<ArchiveItem> items = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, null, null, null, null,
+                COLUMN_NAME + " COLLATE NOCASE")) {
+            while (cursor.moveToNext()) {
+                items.add(toItem(cursor));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return The cataloged archive of that name, or null if there is none
+     */
+    public ArchiveItem getArchive(String name) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, COLUMN_NAME + " = ?",
+                new String[]{name}, null, null, null)) {
+            return cursor.moveToFirst() ? toItem(cursor) : null;
+        }
+    }
+
+    public void incrementViewCount(String name) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE + " SET " + COLUMN_VIEW_COUNT + " = "
+                + COLUMN_VIEW_COUNT + " + 1 WHERE " + COLUMN_NAME + " = ?", new Object[]{name});
+        version.incrementAndGet();
+    }
+
+    /**
+     * Record that the central directory of an archive was indexed, unless it is
+     * known to be indexed further already. The check is done by the update itself,
+     * so a concurrent classification is never downgraded.
+     */
+    public void markIndexBuilt(String name) {
+        getWritableDatabase().execSQL("UPDATE " + TABLE + " SET " + COLUMN_INDEX_STATUS + " = " + INDEX_BUILT
+                + " WHERE " + COLUMN_NAME + " = ? AND " + COLUMN_INDEX_STATUS + " = " + INDEX_NONE,
+                new Object[]{name});
+        version.incrementAndGet();
+    }
+
+    /**
+     * Record how far an archive was indexed
+     *
+     * @param indexStatus One of the INDEX_* values
+     */
+    public void updateIndexStatus(String name, int indexStatus) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_INDEX_STATUS, indexStatus);
+        getWritableDatabase().update(TABLE, values, COLUMN_NAME + " = ?", new String[]{name});
+        version.incrementAndGet();
+    }
+
+    /**
+     * Record the thumbnail of an archive's first image as its cover. Call only once
+     * the thumbnail is in the ThumbnailDiskCache.
+     *
+     * @param coverKey Key from ThumbnailDiskCache.keyFor()
+     */
+    public void updateCoverKey(String name, String coverKey) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_COVER_KEY, coverKey);
+        if (getWritableDatabase().update(TABLE, values, COLUMN_NAME + " = ? AND (" + COLUMN_COVER_KEY
+                + " IS NULL OR " + COLUMN_COVER_KEY + " != ?)", new String[]{name, coverKey}) > 0) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if any archive has the given size, so an import of this size may be a duplicate
+     */
+    public boolean hasArchiveOfSize(long size) {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE, COLUMN_SIZE + " = ?",
+                new String[]{String.valueOf(size)}) > 0;
+    }
+
+    /**
+     * Find an archive with the given content
+     *
+     * @return The archive file, or null if no archive is known to have this content
+     */
+    public File findArchive(long size, String hash) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE, new String[]{COLUMN_NAME},
+                COLUMN_SIZE + " = ? AND " + COLUMN_CONTENT_HASH + " = ?",
+                new String[]{String.valueOf(size), hash}, null, null, null)) {
+            while (cursor.moveToNext()) {
+                File file = new File(archivesDir, cursor.getString(0));
+                // The observer may not have caught up with a delete or replace yet
+                if (file.isFile() && file.length() == size) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the content hash of an archive, adding its row if the observer didn't yet.
+     * The hash is dropped if the file changes afterwards.
+     */
+    public void putHash(File archiveFile, String hash) {
+        SQLiteDatabase db = getWritableDatabase();
+        long size = archiveFile.length();
+        long modified = archiveFile.lastModified();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, archiveFile.getName());
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_MODIFIED, modified);
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+
+        values.clear();
+        values.put(COLUMN_CONTENT_HASH, hash);
+        // Only for the file that was hashed, not one that replaced it meanwhile
+        db.update(TABLE, values, COLUMN_NAME + " = ? AND " + COLUMN_SIZE + " = ? AND " + COLUMN_MODIFIED + " = ?",
+                new String[]{archiveFile.getName(), String.valueOf(size), String.valueOf(modified)});
+    }
+
+    /**
+     * @return The archives whose content hash isn't known, e.g. because they were
+     *         imported before hashes were recorded
+     */
+    public List<File> getArchivesWithoutHash() {
+        List<File> files = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE, new String[]{COLUMN_NAME},
+                COLUMN_CONTENT_HASH + " IS NULL", null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                files.add(new File(archivesDir, cursor.getString(0)));
+            }
+        }
+        return files;
+    }
+
+    private void onFileEvent(int event, String name) {
+        if (name == null) {
+            return;
+        }
+        File file = new File(archivesDir, name);
+        if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0 && isArchive(file)) {
+            putFile(getWritableDatabase(), file);
+        } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            getWritableDatabase().delete(TABLE, COLUMN_NAME + " = ?", new String[]{name});
+        } else {
+            return;
+        }
+        version.incrementAndGet();
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onCatalogChanged();
+        }
+    }
+
+    /**
+     * Insert the row of an archive file, or update it if the file changed. A changed
+     * file keeps its view count, but its index, hash and cover have to be learned
+     * again. An unchanged file keeps them, e.g. the hash an import recorded before the observer
+     * saw the file.
+     */
+    private void putFile(SQLiteDatabase db, File file) {
+        long size = file.length();
+        long modified = file.lastModified();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_MODIFIED, modified);
+        values.put(COLUMN_INDEX_STATUS, INDEX_NONE);
+        values.putNull(COLUMN_CONTENT_HASH);
+        values.putNull(COLUMN_COVER_KEY);
+        db.update(TABLE, values, COLUMN_NAME + " = ? AND (" + COLUMN_SIZE + " != ? OR " + COLUMN_MODIFIED + " != ?)",
+                new String[]{file.getName(), String.valueOf(size), String.valueOf(modified)});
+        values.put(COLUMN_NAME, file.getName());
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private ArchiveItem toItem(Cursor cursor) {
+        return new ArchiveItem(new File(archivesDir, cursor.getString(0)), cursor.getLong(1), cursor.getLong(2),
+                cursor.getInt(3), cursor.getInt(4), cursor.getString(5));
+    }
+
+    /**
+     * The index directory lives next to the archives
+     */
+    private static boolean isArchive(File file) {
+        return file.isFile();
+    }
+}
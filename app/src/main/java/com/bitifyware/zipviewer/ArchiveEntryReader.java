@@ -0,0 +1,231 @@
+package com.bitifyware.zipviewer;
+
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.FileHeader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Opens archive entries directly from their local header offset
+ * This skips zip4j's central directory parsing, the offset and sizes are taken
+ * from the ArchiveIndex and the file channel from the ArchiveSession. The channel is
+ * only read at explicit positions, so it may also be a duplicate of a descriptor
+ * shared with other channels. Decryption and decompression are still done by zip4j,
+ * except for unencrypted STORED entries: those are read with positional reads
+ * bounded to the entry data, without any zip4j stream layers. Reads of a whole
+ * entry can memory-map it instead.
+ */
+public class ArchiveEntryReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int COMPRESSION_STORED = 0;
+
+    /**
+     * Open a stream over the uncompressed (and decrypted) data of an entry
+     * The channel is owned by the caller: closing the stream leaves it open.
+     *
+     * @param channel Open channel of the archive file
+     * @param entry The indexed entry to read
+     * @param password Password for encrypted entries, may be null
+     * @return A stream positioned at the start of the entry data
+     */
+    public static InputStream openEntry(FileChannel channel, ArchiveIndex.Entry entry, String password)
+            throws IOException {
+        if (canMap(entry)) {
+            // Mapping costs a page table setup per call, too much for reads of a header
+            return new BufferedInputStream(new ChannelInputStream(channel, findDataOffset(channel, entry),
+                    entry.getCompressedSize()), BUFFER_SIZE);
+        }
+        InputStream rawStream = new BufferedInputStream(
+                new ChannelInputStream(channel, entry.getLocalHeaderOffset(), Long.MAX_VALUE), BUFFER_SIZE);
+        char[] passwordChars = password != null && !password.isEmpty() ? password.toCharArray() : null;
+        ZipInputStream zipInputStream = new ZipInputStream(rawStream, passwordChars);
+
+        // Sizes and CRC come from the index, local headers may not carry them
+        FileHeader fileHeader = new FileHeader();
+        fileHeader.setFileName(entry.getName());
+        fileHeader.setCrc(entry.getCrc());
+        fileHeader.setCompressedSize(entry.getCompressedSize());
+        fileHeader.setUncompressedSize(entry.getUncompressedSize());
+        if (zipInputStream.getNextEntry(fileHeader, false) == null) {
+            throw new IOException("Could not locate local file header for " + entry.getName());
+        }
+        return zipInputStream;
+    }
+
+    /**
+     * Open a stream over the whole data of an entry that is read to the end, e.g. to
+     * decode a full page. Unencrypted STORED entries are memory-mapped, the rest is
+     * read like openEntry() does.
+     */
+    public static InputStream openMappedEntry(FileChannel channel, ArchiveIndex.Entry entry, String password)
+            throws IOException {
+        if (canMap(entry)) {
+            return new ByteBufferInputStream(mapEntry(channel, entry));
+        }
+        return openEntry(channel, entry, password);
+    }
+
+    /**
+     * @return true if the entry data is stored as-is and can be memory-mapped
+     */
+    public static boolean canMap(ArchiveIndex.Entry entry) {
+        return entry.getCompressionMethod() == COMPRESSION_STORED && !entry.isEncrypted()
+                && entry.getCompressedSize() > 0 && entry.getCompressedSize() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Memory-map the data of an unencrypted STORED entry
+     *
+     * @param channel Channel of the archive file, its position is left unchanged
+     * @return A read-only buffer over the entry data, valid after the channel is closed
+     */
+    public static MappedByteBuffer mapEntry(FileChannel channel, ArchiveIndex.Entry entry) throws IOException {
+        long dataOffset = findDataOffset(channel, entry);
+        return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.getCompressedSize());
+    }
+
+    /**
+     * Locate the data of an entry by reading its local header, since its name and
+     * extra field lengths may differ from the central directory
+     *
+     * @param channel Channel of the archive file, its position is left unchanged
+     * @return The offset of the entry data in the archive
+     */
+    public static long findDataOffset(FileChannel channel, ArchiveIndex.Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = entry.getLocalHeaderOffset();
+        while (header.hasRemaining()) {
+            int read = channel.read(header, position + header.position());
+            if (read < 0) {
+                throw new IOException("Truncated local file header for " + entry.getName());
+            }
+        }
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Could not locate local file header for " + entry.getName());
+        }
+        int fileNameLength = header.getShort(26) & 0xFFFF;
+        int extraFieldLength = header.getShort(28) & 0xFFFF;
+        long dataOffset = position + LOCAL_HEADER_SIZE + fileNameLength + extraFieldLength;
+        if (dataOffset + entry.getCompressedSize() > channel.size()) {
+            throw new IOException("Entry data exceeds archive size for " + entry.getName());
+        }
+        return dataOffset;
+    }
+
+    /**
+     * InputStream view of a (memory-mapped) ByteBuffer, reads copy nothing but the
+     * requested bytes and mark/reset is supported for multi-pass decoders
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+
+    /**
+     * InputStream view of a FileChannel from a position, ending after a number of
+     * bytes. Reads are positional and leave the channel position unchanged.
+     * Closing the stream leaves the channel open, it is owned by the caller.
+     */
+    static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        /**
+         * @param limit Number of bytes to read at most
+         */
+        ChannelInputStream(FileChannel channel, long position, long limit) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (count > 0) {
+                position += count;
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = Math.max(0, Math.min(Math.min(n, remaining), channel.size() - position));
+            position += count;
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.bitifyware.zipviewer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copies archives shared by other apps into private storage
+ * When the content URI is backed by a regular file, the copy runs through memory
+ * mapped chunks of it, which keeps the data out of the Java heap. Pipes and
+ * streaming providers are copied through a large direct buffer instead. An archive
+ * that is already in private storage under any name resolves to the existing file:
+ * a regular file of the same size as a cataloged archive is hashed before anything
+ * is written, so a duplicate costs one read, and any other content is hashed while
+ * it is copied. The copy goes to a temporary file in a
+ * separate directory that is renamed into the archives directory at the end, so a
+ * failed or interrupted import never leaves a half-written archive there.
+ */
+public class ArchiveImporter {
+
+    // Bytes mapped per copy or hash step, progress is reported in between
+    private static final long MAP_CHUNK_SIZE = 8L * 1024 * 1024;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Free space left over after an import, the index and thumbnails need room too
+    private static final long FREE_SPACE_RESERVE = 32L * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    // Temporary files not written to for this long belong to imports that died
+    private static final long STALE_IMPORT_AGE_MS = 10 * 60 * 1000;
+
+    public interface ProgressListener {
+        /**
+         * Called on the importing thread, at most every few hundred ms
+         *
+         * @param totalBytes Size of the archive, or -1 if the provider doesn't tell
+         * @param bytesPerSecond Average throughput since the start of the copy
+         */
+        void onProgress(long copiedBytes, long totalBytes, long bytesPerSecond);
+    }
+
+    /**
+     * Outcome of an import
+     */
+    public static class Result {
+        private final File archiveFile;
+        private final boolean duplicate;
+
+        Result(File archiveFile, boolean duplicate) {
+            this.archiveFile = archiveFile;
+            this.duplicate = duplicate;
+        }
+
+        /**
+         * @return The archive in private storage holding the imported content
+         */
+        public File getArchiveFile() {
+            return archiveFile;
+        }
+
+        /**
+         * @return true if the content was already in private storage and nothing was stored
+         */
+        public boolean isDuplicate() {
+            return duplicate;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+    private final ArchiveCatalog catalog;
+    private final File archivesDir;
+    private final File importDir;
+
+    public ArchiveImporter(Context context, ArchiveCatalog catalog) {
+        this.contentResolver = context.getContentResolver();
+        this.catalog = catalog;
+        this.archivesDir = new File(context.getFilesDir(), "archives");
+        // Same file system as the archives, so the final rename is atomic
+        this.importDir = new File(context.getFilesDir(), "imports");
+    }
+
+    /**
+     * Import the content of a URI into the archives directory. New content is stored
+     * under the file name, with a number appended if another archive has that name.
+     * Blocks, call on a worker thread.
+     *
+     * @param listener Receiver for progress updates, may be null
+     * @throws IOException if the URI can't be read, there is not enough free space, or the copy failed
+     */
+    public Result importArchive(Uri uri, String fileName, ProgressListener listener) throws IOException {
+        if (!importDir.exists()) {
+            importDir.mkdirs();
+        }
+        File tempFile = null;
+        boolean done = false;
+        try {
+            String hash;
+            ParcelFileDescriptor descriptor = openFileDescriptor(uri);
+            if (descriptor != null) {
+                long totalBytes = descriptor.getStatSize();
+                try (FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+                    FileChannel source = inputStream.getChannel();
+                    String sourceHash = null;
+                    if (totalBytes >= 0 && catalog.hasArchiveOfSize(totalBytes)) {
+                        // Possibly a duplicate, find out before writing anything
+                        sourceHash = hash(source, totalBytes);
+                        File existing = catalog.findArchive(totalBytes, sourceHash);
+                        if (existing != null) {
+                            return new Result(existing, true);
+                        }
+                    }
+                    checkFreeSpace(totalBytes);
+                    tempFile = File.createTempFile("import", ".part", importDir);
+                    MessageDigest digest = sourceHash == null ? newDigest() : null;
+                    copy(source, totalBytes, tempFile, digest, listener);
+                    if (digest != null) {
+                        hash = toHex(digest.digest());
+                    } else if (tempFile.length() == totalBytes) {
+                        hash = sourceHash;
+                    } else {
+                        // Grew while it was copied, the early hash doesn't cover it
+                        hash = hashFile(tempFile);
+                    }
+                }
+            } else {
+                try (InputStream inputStream = contentResolver.openInputStream(uri)) {
+                    if (inputStream == null) {
+                        throw new IOException("Cannot open input stream");
+                    }
+                    tempFile = File.createTempFile("import", ".part", importDir);
+                    MessageDigest digest = newDigest();
+                    copy(inputStream, tempFile, digest, listener);
+                    hash = toHex(digest.digest());
+                }
+            }
+
+            // Sources of unknown size are only recognized now, by the hash taken while copying
+            long size = tempFile.length();
+            File existing = catalog.findArchive(size, hash);
+            if (existing != null) {
+                return new Result(existing, true);
+            }
+            File archiveFile;
+            synchronized (ArchiveImporter.class) {
+                archiveFile = getUniqueFile(fileName);
+                if (!tempFile.renameTo(archiveFile)) {
+                    throw new IOException("Cannot move " + tempFile.getName() + " to " + archiveFile.getName());
+                }
+            }
+            catalog.putHash(archiveFile, hash);
+            done = true;
+            return new Result(archiveFile, false);
+        } finally {
+            if (!done && tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Hash the archives whose hash isn't cataloged, e.g. because they were imported
+     * before hashes were recorded, so imports recognize them. Blocks, call on a
+     * worker thread, and off the import path.
+     */
+    public void hashUncatalogedArchives() {
+        for (File file : catalog.getArchivesWithoutHash()) {
+            try {
+                catalog.putHash(file, hashFile(file));
+            } catch (IOException e) {
+                // Can't tell, the archive is just not recognized as a duplicate
+            }
+        }
+    }
+
+    /**
+     * Remove temporary files of imports that never finished, e.g. because the process
+     * was killed. Imports still running keep writing to their file and are left alone.
+     */
+    public void deleteStaleImports() {
+        File[] files = importDir.listFiles();
+        if (files != null) {
+            long staleBefore = System.currentTimeMillis() - STALE_IMPORT_AGE_MS;
+            for (File file : files) {
+                if (file.lastModified() < staleBefore) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A file in the archives directory with the given name, or the name with a
+     * number appended if that is taken. Call with the class lock held.
+     */
+    private File getUniqueFile(String fileName) {
+        if (!archivesDir.exists()) {
+            archivesDir.mkdirs();
+        }
+        // Split filename into name and extension
+        String nameWithoutExt = fileName;
+        String extension = "";
+        int lastDotIndex = fileName.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+            nameWithoutExt = fileName.substring(0, lastDotIndex);
+            extension = fileName.substring(lastDotIndex);
+        }
+
+        File file = new File(archivesDir, fileName);
+        for (int counter = 1; file.exists(); counter++) {
+            file = new File(archivesDir, nameWithoutExt + " (" + counter + ")" + extension);
+        }
+        return file;
+    }
+
+    /**
+     * @return A descriptor for the URI, or null if the provider only serves streams
+     */
+    private ParcelFileDescriptor openFileDescriptor(Uri uri) throws FileNotFoundException {
+        try {
+            return contentResolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Some providers reject descriptor access but still hand out streams
+            return null;
+        }
+    }
+
+    private void checkFreeSpace(long totalBytes) throws IOException {
+        if (totalBytes < 0) {
+            return;
+        }
+        // A replaced archive only frees its space once the rename is done
+        long usableSpace = importDir.getUsableSpace();
+        if (usableSpace < totalBytes + FREE_SPACE_RESERVE) {
+            throw new IOException("Not enough free space: " + (totalBytes >> 20) + " MB needed, "
+                    + (usableSpace >> 20) + " MB available");
+        }
+    }
+
+    /**
+     * Copy and hash from a file channel, through mapped chunks when the source is a regular file
+     *
+     * @param totalBytes Size of the source file, or -1 for pipes and sockets
+     * @param digest Receives the copied bytes, null if the source was hashed already
+     */
+    private void copy(FileChannel source, long totalBytes, File tempFile, MessageDigest digest,
+                      ProgressListener listener) throws IOException {
+        Progress progress = new Progress(totalBytes, listener);
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            FileChannel target = outputStream.getChannel();
+            long position = 0;
+            if (totalBytes >= 0) {
+                while (position < totalBytes) {
+                    long size = Math.min(MAP_CHUNK_SIZE, totalBytes - position);
+                    MappedByteBuffer chunk;
+                    try {
+                        chunk = source.map(FileChannel.MapMode.READ_ONLY, position, size);
+                    } catch (IOException e) {
+                        // Not mappable after all, the rest is read below
+                        break;
+                    }
+                    if (digest != null) {
+                        digest.update(chunk.duplicate());
+                    }
+                    while (chunk.hasRemaining()) {
+                        target.write(chunk);
+                    }
+                    position += size;
+                    progress.update(position);
+                }
+                source.position(position);
+            }
+            // Pipes, and whatever a growing file has beyond its size at the start
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer.duplicate());
+                }
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer);
+                }
+                buffer.clear();
+                progress.update(position);
+            }
+            outputStream.getFD().sync();
+            progress.finish(position);
+        }
+    }
+
+    /**
+     * Copy and hash from a stream, for providers that don't hand out descriptors
+     */
+    private void copy(InputStream source, File tempFile, MessageDigest digest, ProgressListener listener)
+            throws IOException {
+        Progress progress = new Progress(-1, listener);
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            int bytesRead;
+            while ((bytesRead = source.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                outputStream.write(buffer, 0, bytesRead);
+                position += bytesRead;
+                progress.update(position);
+            }
+            outputStream.getFD().sync();
+            progress.finish(position);
+        }
+    }
+
+    /**
+     * Hash a source of known size without copying it, through mapped chunks when possible
+     */
+    private static String hash(FileChannel source, long totalBytes) throws IOException {
+        MessageDigest digest = newDigest();
+        long position = 0;
+        while (position < totalBytes) {
+            long size = Math.min(MAP_CHUNK_SIZE, totalBytes - position);
+            try {
+                digest.update(source.map(FileChannel.MapMode.READ_ONLY, position, size));
+            } catch (IOException e) {
+                // Not mappable after all, the rest is read below
+                break;
+            }
+            position += size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (position < totalBytes) {
+            buffer.limit((int) Math.min(BUFFER_SIZE, totalBytes - position));
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+            position += read;
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hash a whole file through memory mapped chunks
+     */
+    private static String hashFile(File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            return hash(channel, channel.size());
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android version ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Rate limited progress reporting
+     */
+    private static class Progress {
+        private final long totalBytes;
+        private final ProgressListener listener;
+        private final long startTime = SystemClock.elapsedRealtime();
+        private long lastReport = startTime;
+
+        Progress(long totalBytes, ProgressListener listener) {
+            this.totalBytes = totalBytes;
+            this.listener = listener;
+        }
+
+        void update(long copiedBytes) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                lastReport = now;
+                report(copiedBytes, now);
+            }
+        }
+
+        void finish(long copiedBytes) {
+            report(copiedBytes, SystemClock.elapsedRealtime());
+        }
+
+        private void report(long copiedBytes, long now) {
+            if (listener != null) {
+                long elapsed = Math.max(1, now - startTime);
+                listener.onProgress(copiedBytes, totalBytes, copiedBytes * 1000 / elapsed);
+            }
+        }
+    }
+}
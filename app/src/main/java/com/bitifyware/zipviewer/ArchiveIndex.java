@@ -0,0 +1,463 @@
+package com.bitifyware.zipviewer;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persisted listing of the file entries of an archive
+ * The index is stored next to the archive (in a hidden ".index" folder) and holds
+ * everything needed to read an entry without parsing the central directory again,
+ * along with the image format detected from each entry's content.
+ * It is invalidated when the archive's length or modification time changes.
+ * Archives opened in place can't be opened by path, their central directory is
+ * parsed here from the descriptor instead of by zip4j.
+ */
+public class ArchiveIndex {
+
+    private static final int MAGIC = 0x5A564958; // "ZVIX"
+    private static final int VERSION = 2;
+    private static final String INDEX_DIR = ".index";
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    /**
+     * A single file entry of the archive
+     */
+    public static class Entry {
+        private final String name;
+        private final long crc;
+        private final long compressedSize;
+        private final long uncompressedSize;
+        private final long localHeaderOffset;
+        private final int compressionMethod;
+        private final boolean encrypted;
+        private int format = ImageProber.FORMAT_UNCHECKED;
+        private int width;
+        private int height;
+
+        Entry(String name, long crc, long compressedSize, long uncompressedSize,
+              long localHeaderOffset, int compressionMethod, boolean encrypted) {
+            this.name = name;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+            this.compressionMethod = compressionMethod;
+            this.encrypted = encrypted;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getUncompressedSize() {
+            return uncompressedSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        /**
+         * @return The ZIP compression method code (0 = stored, 8 = deflate)
+         */
+        public int getCompressionMethod() {
+            return compressionMethod;
+        }
+
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        /**
+         * @return One of the ImageProber.FORMAT_* values detected from the entry content
+         */
+        public synchronized int getFormat() {
+            return format;
+        }
+
+        public boolean isImage() {
+            return getFormat() > ImageProber.FORMAT_UNKNOWN;
+        }
+
+        /**
+         * @return The decoded image width, or 0 if not known yet
+         */
+        public synchronized int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return The decoded image height, or 0 if not known yet
+         */
+        public synchronized int getHeight() {
+            return height;
+        }
+    }
+
+    private final long archiveLength;
+    private final long archiveModified;
+    private final List<Entry> entries;
+    private boolean dirty;
+
+    private ArchiveIndex(long archiveLength, long archiveModified, List<Entry> entries) {
+        this.archiveLength = archiveLength;
+        this.archiveModified = archiveModified;
+        this.entries = entries;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return The entries whose content was detected as a supported image
+     */
+    public List<Entry> getImageEntries() {
+        List<Entry> imageEntries = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.isImage()) {
+                imageEntries.add(entry);
+            }
+        }
+        return imageEntries;
+    }
+
+    /**
+     * @return true if any entry of the archive is encrypted
+     */
+    public boolean isEncrypted() {
+        for (Entry entry : entries) {
+            if (entry.isEncrypted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the index still matches the archive file, i.e. it wasn't replaced
+     */
+    public boolean isCurrent(File archiveFile) {
+        return archiveLength == InPlaceArchive.length(archiveFile)
+                && archiveModified == InPlaceArchive.lastModified(archiveFile);
+    }
+
+    /**
+     * Record the image format detected from the content of an entry
+     */
+    public void updateFormat(Entry entry, int format) {
+        synchronized (entry) {
+            if (entry.format == format) {
+                return;
+            }
+            entry.format = format;
+        }
+        synchronized (this) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Record the decoded dimensions of an entry, to be persisted on the next save
+     */
+    public void updateDimensions(Entry entry, int width, int height) {
+        synchronized (entry) {
+            if (entry.width == width && entry.height == height) {
+                return;
+            }
+            entry.width = width;
+            entry.height = height;
+        }
+        synchronized (this) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Load the index of an archive, or build and persist it if it is missing or stale
+     */
+    public static ArchiveIndex loadOrBuild(File archiveFile) throws IOException {
+        ArchiveIndex index = load(archiveFile);
+        if (index == null) {
+            index = build(archiveFile);
+            index.save(archiveFile);
+        }
+        return index;
+    }
+
+    /**
+     * Load the persisted index of an archive
+     *
+     * @return The index, or null if there is none or it doesn't match the archive anymore
+     */
+    public static ArchiveIndex load(File archiveFile) {
+        File indexFile = getIndexFile(archiveFile);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            long archiveLength = input.readLong();
+            long archiveModified = input.readLong();
+            if (archiveLength != InPlaceArchive.length(archiveFile)
+                    || archiveModified != InPlaceArchive.lastModified(archiveFile)) {
+                return null;
+            }
+            int count = input.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(input.readUTF(), input.readLong(), input.readLong(),
+                        input.readLong(), input.readLong(), input.readInt(), input.readBoolean());
+                entry.format = input.readInt();
+                entry.width = input.readInt();
+                entry.height = input.readInt();
+                entries.add(entry);
+            }
+            return new ArchiveIndex(archiveLength, archiveModified, entries);
+        } catch (IOException e) {
+            // Corrupt or truncated index, rebuild it
+            return null;
+        }
+    }
+
+    /**
+     * Build the index by parsing the central directory of the archive
+     */
+    public static ArchiveIndex build(File archiveFile) throws IOException {
+        long archiveLength = InPlaceArchive.length(archiveFile);
+        long archiveModified = InPlaceArchive.lastModified(archiveFile);
+        try (FileChannel channel = InPlaceArchive.openChannel(archiveFile)) {
+            if (channel != null) {
+                return new ArchiveIndex(archiveLength, archiveModified, readCentralDirectory(channel));
+            }
+        }
+        List<FileHeader> fileHeaders;
+        try (ZipFile zipFile = new ZipFile(archiveFile)) {
+            fileHeaders = zipFile.getFileHeaders();
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (FileHeader fileHeader : fileHeaders) {
+            // Every file is a candidate, images are detected from their content later
+            if (!fileHeader.isDirectory() && fileHeader.getUncompressedSize() > 0) {
+                entries.add(new Entry(
+                        fileHeader.getFileName(),
+                        fileHeader.getCrc(),
+                        fileHeader.getCompressedSize(),
+                        fileHeader.getUncompressedSize(),
+                        fileHeader.getOffsetLocalHeader(),
+                        fileHeader.getCompressionMethod().getCode(),
+                        fileHeader.isEncrypted()));
+            }
+        }
+        return new ArchiveIndex(archiveLength, archiveModified, entries);
+    }
+
+    /**
+     * Parse the central directory of an archive with positional reads of a channel
+     * Reads what the index needs only: sizes, offsets and Zip64 extensions. Names are
+     * decoded as UTF-8, like zip4j does by default.
+     */
+    private static List<Entry> readCentralDirectory(FileChannel channel) throws IOException {
+        long length = channel.size();
+        int tailSize = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, length - tailSize, tailSize);
+        int end = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+        while (end >= 0 && tail.getInt(end) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            end--;
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive");
+        }
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        long endPosition = length - tailSize + end;
+        if (endPosition >= ZIP64_LOCATOR_SIZE) {
+            ByteBuffer locator = read(channel, endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64End = read(channel, locator.getLong(8), ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    throw new IOException("Corrupt Zip64 end of central directory");
+                }
+                count = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE || directoryOffset + directorySize > length) {
+            throw new IOException("Corrupt central directory");
+        }
+
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        List<Entry> entries = new ArrayList<>();
+        int offset = 0;
+        for (long i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > directory.limit()
+                    || directory.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Corrupt central directory");
+            }
+            int flags = directory.getShort(offset + 8) & 0xFFFF;
+            int compressionMethod = directory.getShort(offset + 10) & 0xFFFF;
+            long crc = directory.getInt(offset + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(offset + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = directory.getInt(offset + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+            int extraLength = directory.getShort(offset + 30) & 0xFFFF;
+            int commentLength = directory.getShort(offset + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(offset + 42) & 0xFFFFFFFFL;
+            int nameOffset = offset + CENTRAL_HEADER_SIZE;
+            int extraOffset = nameOffset + nameLength;
+            int next = extraOffset + extraLength + commentLength;
+            if (next > directory.limit()) {
+                throw new IOException("Corrupt central directory");
+            }
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(nameOffset);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Zip64 extra field: only the values that overflowed are present, in this order
+            for (int extra = extraOffset; extra + 4 <= extraOffset + extraLength; ) {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int size = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xFFFFFFFFL && field + 8 <= extra + 4 + size) {
+                        uncompressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL && field + 8 <= extra + 4 + size) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL && field + 8 <= extra + 4 + size) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + size;
+            }
+
+            // Every file is a candidate, images are detected from their content later
+            boolean directoryEntry = name.endsWith("/") || name.endsWith("\\");
+            if (!directoryEntry && uncompressedSize > 0) {
+                entries.add(new Entry(name, crc, compressedSize, uncompressedSize, localHeaderOffset,
+                        compressionMethod, (flags & 0x01) != 0));
+            }
+            offset = next;
+        }
+        return entries;
+    }
+
+    /**
+     * Read a region of a channel completely, without moving its position
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Persist the index if it was modified since it was loaded or last saved
+     */
+    public synchronized void saveIfDirty(File archiveFile) {
+        if (dirty) {
+            try {
+                save(archiveFile);
+            } catch (IOException e) {
+                // Index is only an optimization, it will be rebuilt next time
+            }
+        }
+    }
+
+    /**
+     * Persist the index next to the archive. The file is replaced atomically.
+     */
+    public synchronized void save(File archiveFile) throws IOException {
+        File indexFile = getIndexFile(archiveFile);
+        File indexDir = indexFile.getParentFile();
+        if (indexDir != null && !indexDir.exists()) {
+            indexDir.mkdirs();
+        }
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(archiveLength);
+            output.writeLong(archiveModified);
+            output.writeInt(entries.size());
+            for (Entry entry : entries) {
+                output.writeUTF(entry.name);
+                output.writeLong(entry.crc);
+                output.writeLong(entry.compressedSize);
+                output.writeLong(entry.uncompressedSize);
+                output.writeLong(entry.localHeaderOffset);
+                output.writeInt(entry.compressionMethod);
+                output.writeBoolean(entry.encrypted);
+                output.writeInt(entry.getFormat());
+                output.writeInt(entry.getWidth());
+                output.writeInt(entry.getHeight());
+            }
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Cannot write archive index");
+        }
+        dirty = false;
+    }
+
+    /**
+     * Remove the persisted index of an archive, e.g. when the archive is deleted
+     */
+    public static void delete(File archiveFile) {
+        getIndexFile(archiveFile).delete();
+    }
+
+    private static File getIndexFile(File archiveFile) {
+        return new File(new File(archiveFile.getParentFile(), INDEX_DIR), archiveFile.getName() + ".idx");
+    }
+}
@@ -13,6 +13,9 @@ public class ArchiveItem {
     private Date date;
     private int viewCount;
     private String password;
+    private int indexStatus;
+    // Thumbnail cache key of the first image, null if not known yet
+    private String coverKey;
 
     public ArchiveItem(File file) {
         this.file = file;
@@ -23,6 +26,19 @@ public class ArchiveItem {
         this.password = null;
     }
 
+    /**
+     * Create an item from what the ArchiveCatalog knows, without touching the file
+     */
+    public ArchiveItem(File file, long size, long modified, int viewCount, int indexStatus, String coverKey) {
+        this.file = file;
+        this.name = file.getName();
+        this.size = size;
+        this.date = new Date(modified);
+        this.viewCount = viewCount;
+        this.indexStatus = indexStatus;
+        this.coverKey = coverKey;
+    }
+
     public File getFile() {
         return file;
     }
@@ -61,6 +77,20 @@ public class ArchiveItem {
         viewCount++;
     }
 
+    /**
+     * @return One of the ArchiveCatalog.INDEX_* values
+     */
+    public int getIndexStatus() {
+        return indexStatus;
+    }
+
+    /**
+     * @return ThumbnailDiskCache key of the first image's thumbnail, or null if not known
+     */
+    public String getCoverKey() {
+        return coverKey;
+    }
+
     public String getPassword() {
         return password;
     }
@@ -0,0 +1,211 @@
+package com.bitifyware.zipviewer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide registry of the open archives and what the screens learned about them
+ * The gallery and the viewer of an archive share one Content: the table of image
+ * entries with their thumbnails, the thumbnail loader and the viewer's page cache.
+ * Contents are reference counted like ArchiveSessions, but the last release only
+ * takes effect on the next turn of the main loop, so an activity recreated for a
+ * configuration change picks up the content of the instance it replaces.
+ * After process death the registry is empty; the entry table is then rebuilt from
+ * the persisted ArchiveIndex instead of rescanning the archive.
+ * All methods must be called on the main thread unless noted otherwise.
+ */
+public class ArchiveRegistry {
+
+    private static final Map<String, Content> contents = new HashMap<>();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Shared state of one archive
+     */
+    public static class Content {
+        private final String key;
+        private final List<ImageEntry> images = new ArrayList<>();
+        private boolean complete;
+        private ArchiveSession session;
+        private ThumbnailLoader thumbnailLoader;
+        private BitmapCache bitmapCache;
+        private int refCount;
+
+        private Content(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return The live entry table, in archive order
+         */
+        public List<ImageEntry> getImages() {
+            return images;
+        }
+
+        /**
+         * @return true once every entry of the archive was classified into the table
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public void setComplete(boolean complete) {
+            this.complete = complete;
+        }
+
+        /**
+         * @return The archive session the table was read with, or null while loading
+         */
+        public ArchiveSession getSession() {
+            return session;
+        }
+
+        /**
+         * Keep a reference to a session, which is released with the content.
+         * The caller's own reference is taken over.
+         */
+        public void setSession(ArchiveSession session) {
+            if (this.session != null && this.session != session) {
+                this.session.release();
+            }
+            this.session = session;
+        }
+
+        public ThumbnailLoader getThumbnailLoader() {
+            return thumbnailLoader;
+        }
+
+        /**
+         * Keep a thumbnail loader, any previous one is shut down
+         */
+        public void setThumbnailLoader(ThumbnailLoader thumbnailLoader) {
+            if (this.thumbnailLoader != null && this.thumbnailLoader != thumbnailLoader) {
+                this.thumbnailLoader.shutdown();
+            }
+            this.thumbnailLoader = thumbnailLoader;
+        }
+
+        /**
+         * @return The cache of full-size viewer pages, created on first use
+         */
+        public BitmapCache getBitmapCache(Context context) {
+            if (bitmapCache == null) {
+                // Dropped pages go back to the BitmapPool once no page shows them anymore
+                bitmapCache = new BitmapCache(context.getApplicationContext(),
+                        bitmap -> mainHandler.post(() -> BitmapPool.getInstance().recycle(bitmap)));
+            }
+            return bitmapCache;
+        }
+
+        /**
+         * Drop all cached viewer pages, e.g. because the viewer was closed
+         */
+        public void clearBitmapCache() {
+            if (bitmapCache != null) {
+                bitmapCache.clear();
+            }
+        }
+
+        /**
+         * Install a complete entry table read with readImages()
+         */
+        public void setImages(List<ImageEntry> images) {
+            this.images.clear();
+            this.images.addAll(images);
+            complete = true;
+        }
+
+        private void close() {
+            setThumbnailLoader(null);
+            if (bitmapCache != null) {
+                bitmapCache.clear();
+                bitmapCache = null;
+            }
+            for (ImageEntry entry : images) {
+                entry.recycle();
+            }
+            images.clear();
+            complete = false;
+            setSession(null);
+            // Archives shown straight from a content URI are done with once no screen shows them
+            InPlaceArchive.close(new File(key));
+        }
+    }
+
+    /**
+     * Get the content of an archive, creating an empty one if needed. Every call
+     * must be balanced by a call to release().
+     */
+    public static Content acquire(String archivePath) {
+        String key = new File(archivePath).getAbsolutePath();
+        Content content = contents.get(key);
+        if (content == null) {
+            content = new Content(key);
+            contents.put(key, content);
+        }
+        content.refCount++;
+        return content;
+    }
+
+    /**
+     * Drop a reference to a content. Once the last reference is gone and not
+     * taken again by the end of this main loop turn, its thumbnails go back to the
+     * BitmapPool and its loader and session are released.
+     */
+    public static void release(Content content) {
+        if (content.refCount == 0 || --content.refCount > 0) {
+            return;
+        }
+        mainHandler.post(() -> {
+            if (content.refCount == 0 && contents.get(content.key) == content) {
+                contents.remove(content.key);
+                content.close();
+            }
+        });
+    }
+
+    /**
+     * Create an entry of the table from the index only, so screens can show
+     * placeholders before any image is decoded. Safe to call on any thread.
+     */
+    public static ImageEntry createImageEntry(ArchiveIndex.Entry indexEntry, String archivePath, String password) {
+        ImageEntry imageEntry = new ImageEntry(indexEntry.getName());
+        imageEntry.setFileSize(indexEntry.getUncompressedSize());
+        imageEntry.setArchivePath(archivePath);
+        imageEntry.setPassword(password);
+        imageEntry.setIndexEntry(indexEntry);
+        return imageEntry;
+    }
+
+    /**
+     * Read the entry table of an archive from its index, classifying entries that
+     * never were. Blocks, call on a worker thread and install the result with
+     * Content.setImages() on the main thread.
+     *
+     * @return The image entries in archive order
+     */
+    public static List<ImageEntry> readImages(ArchiveSession session, String password)
+            throws IOException, InterruptedException {
+        ImageClassifier classifier = new ImageClassifier(session, password);
+        try {
+            classifier.classify(session.getIndex().getEntries());
+        } finally {
+            classifier.shutdown();
+        }
+        session.saveIndex();
+        List<ImageEntry> images = new ArrayList<>();
+        String archivePath = session.getArchiveFile().getAbsolutePath();
+        for (ArchiveIndex.Entry indexEntry : session.getIndex().getImageEntries()) {
+            images.add(createImageEntry(indexEntry, archivePath, password));
+        }
+        return images;
+    }
+}
@@ -0,0 +1,253 @@
+package com.bitifyware.zipviewer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An opened archive shared by all screens showing it
+ * A session holds the archive index and a small pool of open file channels, so
+ * reading an entry costs one positional read plus the inflate/decrypt of that entry
+ * only. Archives opened in place are read through channels over their descriptor.
+ * Sessions are reference counted: every screen acquires the session when it starts
+ * using the archive and releases it when done. When the last reference is released
+ * the file handles are closed; the index of the most recently released archive is
+ * kept, so going back and forth between screens doesn't load it again.
+ */
+public class ArchiveSession {
+
+    // Number of open file handles kept for reuse per archive
+    private static final int MAX_IDLE_HANDLES = 4;
+
+    private static final int EXTRACT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, ArchiveSession> sessions = new HashMap<>();
+    private static ArchiveSession idleSession;
+
+    private final String key;
+    private final File archiveFile;
+    private final ArchiveIndex archiveIndex;
+    private final Deque<FileChannel> freeHandles = new ArrayDeque<>();
+    private int refCount;
+
+    private ArchiveSession(File archiveFile, ArchiveIndex archiveIndex) {
+        this.key = archiveFile.getAbsolutePath();
+        this.archiveFile = archiveFile;
+        this.archiveIndex = archiveIndex;
+    }
+
+    /**
+     * Get the session of an archive, opening it if needed. Every call must be
+     * balanced by a call to release().
+     * The index may have to be built from the archive, so don't call this on the
+     * main thread unless the archive is known to be open already.
+     */
+    public static ArchiveSession acquire(File archiveFile) throws IOException {
+        String key = archiveFile.getAbsolutePath();
+        synchronized (ArchiveSession.class) {
+            ArchiveSession session = sessions.get(key);
+            if (session != null && session.archiveIndex.isCurrent(archiveFile)) {
+                session.retain();
+                return session;
+            }
+        }
+
+        // Loading the index may parse the whole central directory, don't hold the lock meanwhile
+        ArchiveIndex archiveIndex = ArchiveIndex.loadOrBuild(archiveFile);
+
+        synchronized (ArchiveSession.class) {
+            ArchiveSession session = sessions.get(key);
+            if (session == null || !session.archiveIndex.isCurrent(archiveFile)) {
+                // First open, or the archive was replaced since the session was created
+                if (session == idleSession) {
+                    idleSession = null;
+                }
+                session = new ArchiveSession(archiveFile, archiveIndex);
+                sessions.put(key, session);
+            }
+            session.retain();
+            return session;
+        }
+    }
+
+    /**
+     * Forget any session of an archive, e.g. because the archive was deleted.
+     * Screens still holding the session keep working with their handles.
+     */
+    public static void discard(File archiveFile) {
+        synchronized (ArchiveSession.class) {
+            ArchiveSession session = sessions.remove(archiveFile.getAbsolutePath());
+            if (session != null && session == idleSession) {
+                idleSession = null;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference to the session. The file handles are closed once the
+     * last reference is released.
+     */
+    public void release() {
+        List<FileChannel> handles;
+        synchronized (ArchiveSession.class) {
+            if (refCount == 0 || --refCount > 0) {
+                return;
+            }
+            if (sessions.get(key) == this) {
+                if (idleSession != null) {
+                    sessions.remove(idleSession.key);
+                }
+                idleSession = this;
+            }
+            handles = new ArrayList<>(freeHandles);
+            freeHandles.clear();
+        }
+        for (FileChannel handle : handles) {
+            closeQuietly(handle);
+        }
+    }
+
+    public File getArchiveFile() {
+        return archiveFile;
+    }
+
+    public ArchiveIndex getIndex() {
+        return archiveIndex;
+    }
+
+    /**
+     * Open a stream over the uncompressed (and decrypted) data of an entry
+     * The stream holds one of the session's file channels until it is closed.
+     *
+     * @param entry The indexed entry to read
+     * @param password Password for encrypted entries, may be null
+     */
+    public InputStream openEntry(ArchiveIndex.Entry entry, String password) throws IOException {
+        return openEntry(entry, password, false);
+    }
+
+    /**
+     * Open a stream over the whole data of an entry that is read to the end, e.g. to
+     * decode a full page. Unencrypted STORED entries are memory-mapped.
+     */
+    public InputStream openFullEntry(ArchiveIndex.Entry entry, String password) throws IOException {
+        return openEntry(entry, password, true);
+    }
+
+    private InputStream openEntry(ArchiveIndex.Entry entry, String password, boolean mapped) throws IOException {
+        FileChannel handle = borrowHandle();
+        InputStream inputStream;
+        try {
+            inputStream = mapped ? ArchiveEntryReader.openMappedEntry(handle, entry, password)
+                    : ArchiveEntryReader.openEntry(handle, entry, password);
+        } catch (IOException | RuntimeException e) {
+            returnHandle(handle);
+            throw e;
+        }
+        return new FilterInputStream(inputStream) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    returnHandle(handle);
+                }
+            }
+        };
+    }
+
+    /**
+     * Write the uncompressed (and decrypted) data of an entry to a file, e.g. for
+     * decoders that need random access. Unencrypted STORED entries are copied
+     * straight between the file channels.
+     */
+    public void extractEntry(ArchiveIndex.Entry entry, String password, File target) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(target);
+             FileChannel outputChannel = outputStream.getChannel()) {
+            if (ArchiveEntryReader.canMap(entry)) {
+                FileChannel handle = borrowHandle();
+                try {
+                    long position = ArchiveEntryReader.findDataOffset(handle, entry);
+                    long remaining = entry.getCompressedSize();
+                    while (remaining > 0) {
+                        long transferred = handle.transferTo(position, remaining, outputChannel);
+                        if (transferred <= 0) {
+                            throw new IOException("Could not extract " + entry.getName());
+                        }
+                        position += transferred;
+                        remaining -= transferred;
+                    }
+                } finally {
+                    returnHandle(handle);
+                }
+                return;
+            }
+            try (InputStream inputStream = openEntry(entry, password)) {
+                byte[] buffer = new byte[EXTRACT_BUFFER_SIZE];
+                int nRead;
+                while ((nRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, nRead);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist what was learned about the entries (formats, dimensions) to the index
+     */
+    public void saveIndex() {
+        archiveIndex.saveIfDirty(archiveFile);
+    }
+
+    private void retain() {
+        refCount++;
+        if (idleSession == this) {
+            idleSession = null;
+        }
+    }
+
+    private FileChannel borrowHandle() throws IOException {
+        synchronized (ArchiveSession.class) {
+            FileChannel handle = freeHandles.poll();
+            if (handle != null) {
+                return handle;
+            }
+        }
+        FileChannel channel = InPlaceArchive.openChannel(archiveFile);
+        return channel != null ? channel : new RandomAccessFile(archiveFile, "r").getChannel();
+    }
+
+    private void returnHandle(FileChannel handle) {
+        synchronized (ArchiveSession.class) {
+            if (refCount > 0 && freeHandles.size() < MAX_IDLE_HANDLES) {
+                freeHandles.push(handle);
+                return;
+            }
+        }
+        closeQuietly(handle);
+    }
+
+    private static void closeQuietly(FileChannel handle) {
+        try {
+            handle.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
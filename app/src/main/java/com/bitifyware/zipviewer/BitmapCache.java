@@ -0,0 +1,124 @@
+package com.bitifyware.zipviewer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory-bounded cache of full-size bitmaps shown by the image viewer
+ * Bitmaps are keyed by page position and kept in file orientation, rotation is
+ * applied while drawing. The budget is a share of the app's memory class and
+ * bitmaps are weighed by their allocation size. The cache is thread-safe.
+ * Evicted bitmaps are not recycled since a page may still be showing them, they
+ * are handed to the eviction listener instead.
+ */
+public class BitmapCache {
+
+    // Share of the memory class given to full-size bitmaps
+    private static final int MEMORY_CLASS_DIVISOR = 3;
+
+    /**
+     * Receives bitmaps the cache dropped, on the thread that caused it
+     */
+    public interface EvictionListener {
+        void onBitmapEvicted(Bitmap bitmap);
+    }
+
+    private final LruCache<Integer, Bitmap> cache;
+    // Same content as the cache, for lookups that must not count as a use
+    private final Map<Integer, Bitmap> entries = new ConcurrentHashMap<>();
+
+    public BitmapCache(Context context, EvictionListener evictionListener) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxBytes = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+        cache = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer key, Bitmap oldValue, Bitmap newValue) {
+                // A replaced entry was already overwritten by put()
+                entries.remove(key, oldValue);
+                if (oldValue != newValue) {
+                    evictionListener.onBitmapEvicted(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The cached bitmap, or null if it isn't cached or was recycled
+     */
+    public Bitmap get(int position) {
+        Bitmap bitmap = cache.get(position);
+        return bitmap != null && !bitmap.isRecycled() ? bitmap : null;
+    }
+
+    /**
+     * Look at a cached bitmap without making it the most recently used one or
+     * counting a hit or miss
+     *
+     * @return The cached bitmap, or null if it isn't cached or was recycled
+     */
+    public Bitmap peek(int position) {
+        Bitmap bitmap = entries.get(position);
+        return bitmap != null && !bitmap.isRecycled() ? bitmap : null;
+    }
+
+    /**
+     * @return true if a bitmap of the position is cached, without counting it as a use
+     */
+    public boolean contains(int position) {
+        return peek(position) != null;
+    }
+
+    public void put(int position, Bitmap bitmap) {
+        entries.put(position, bitmap);
+        cache.put(position, bitmap);
+    }
+
+    /**
+     * Remove all bitmaps, each one is handed to the eviction listener
+     */
+    public void clear() {
+        cache.evictAll();
+    }
+
+    public int getHitCount() {
+        return cache.hitCount();
+    }
+
+    public int getMissCount() {
+        return cache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * @return Number of bytes currently cached
+     */
+    public int getSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return The budget in bytes
+     */
+    public int getMaxSize() {
+        return cache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+
+}
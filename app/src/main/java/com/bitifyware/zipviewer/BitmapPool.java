@@ -0,0 +1,225 @@
+package com.bitifyware.zipviewer;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Process-wide pool of bitmaps that nothing displays anymore, for decoders to reuse
+ * Decodes take a pooled bitmap through BitmapFactory.Options.inBitmap instead of
+ * allocating a new one, so scrolling through same-size images mostly recycles the
+ * same few buffers. Bitmaps are bucketed by allocation size and a decode only gets
+ * one that is at most twice as large as it needs. The pool is bounded by byte size,
+ * the least recently pooled bitmaps are dropped first.
+ * A bitmap put into the pool belongs to the pool: it must not be displayed or used
+ * in any other way afterwards. Views mark the bitmaps they show as in use, a bitmap
+ * given up through recycle() only enters the pool once no view shows it anymore.
+ */
+public class BitmapPool {
+
+    // A pooled bitmap may be at most this many times larger than the decode needs
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static BitmapPool instance;
+
+    // Pooled bitmaps by allocation size
+    private final TreeMap<Integer, Deque<Bitmap>> buckets = new TreeMap<>();
+    // All pooled bitmaps, least recently pooled first
+    private final Set<Bitmap> pooled = new LinkedHashSet<>();
+    private final long maxPooledBytes;
+    private long pooledBytes;
+    // Number of views showing each bitmap that is in use
+    private final Map<Bitmap, Integer> useCounts = new HashMap<>();
+    // Recycled bitmaps that wait for the last view to stop showing them
+    private final Set<Bitmap> recycleWhenUnused = new HashSet<>();
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Math.min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024));
+        }
+        return instance;
+    }
+
+    private BitmapPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Take a bitmap out of the pool, reconfigured to the given size
+     * Its content is undefined.
+     *
+     * @return A pooled bitmap, or null if none is large enough
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * DecodePolicy.bytesPerPixel(config);
+        if (width <= 0 || height <= 0 || needed > maxPooledBytes) {
+            return null;
+        }
+        Map.Entry<Integer, Deque<Bitmap>> bucket = buckets.ceilingEntry((int) needed);
+        if (bucket == null || bucket.getKey() > needed * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        Bitmap bitmap = bucket.getValue().poll();
+        if (bucket.getValue().isEmpty()) {
+            buckets.remove(bucket.getKey());
+        }
+        pooled.remove(bitmap);
+        pooledBytes -= bucket.getKey();
+        try {
+            bitmap.reconfigure(width, height, config);
+        } catch (IllegalArgumentException e) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Let a decode write into a pooled bitmap. The options must have the sample
+     * size set; the bitmap is sized for the largest result the decoder may produce.
+     * Hardware bitmaps can't be decoded into, the options are left alone for them.
+     *
+     * @param width Width of the encoded image
+     * @param height Height of the encoded image
+     */
+    public void prepareOptions(BitmapFactory.Options options, int width, int height) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        if (config == Bitmap.Config.HARDWARE) {
+            return;
+        }
+        // Decoders round subsampled sizes differently, reserve the larger one
+        options.inBitmap = get((width + sampleSize - 1) / sampleSize, (height + sampleSize - 1) / sampleSize, config);
+        options.inMutable = true;
+    }
+
+    /**
+     * Decode an image held in memory into a pooled bitmap if one fits
+     * The options must hold the image size from a bounds decode and the sample size.
+     */
+    public Bitmap decodeByteArray(byte[] data, int offset, int length, BitmapFactory.Options options) {
+        prepareOptions(options, options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        if (options.inBitmap == null) {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all, decode into a new one
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
+
+    /**
+     * Hand a bitmap over to the pool. Bitmaps that can't be reused are recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == Bitmap.Config.HARDWARE || size > maxPooledBytes) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            if (!pooled.add(bitmap)) {
+                return;
+            }
+            buckets.computeIfAbsent(size, key -> new ArrayDeque<>()).add(bitmap);
+            pooledBytes += size;
+            trimToSize(maxPooledBytes);
+        }
+    }
+
+    /**
+     * Note that a view started showing a bitmap. Each call must be balanced by markUnused().
+     */
+    public synchronized void markInUse(Bitmap bitmap) {
+        if (bitmap != null) {
+            useCounts.merge(bitmap, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Note that a view stopped showing a bitmap. The bitmap enters the pool if it was
+     * recycled while shown and this was the last view showing it.
+     */
+    public void markUnused(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (this) {
+            Integer count = useCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                useCounts.put(bitmap, count - 1);
+                return;
+            }
+            useCounts.remove(bitmap);
+            if (!recycleWhenUnused.remove(bitmap)) {
+                return;
+            }
+        }
+        put(bitmap);
+    }
+
+    /**
+     * Give up a bitmap that may still be shown. It is put into the pool right away if
+     * no view shows it, otherwise once the last one calls markUnused().
+     * Call this on the main thread, where views pick up the bitmaps they show.
+     */
+    public void recycle(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (this) {
+            if (useCounts.containsKey(bitmap)) {
+                recycleWhenUnused.add(bitmap);
+                return;
+            }
+        }
+        put(bitmap);
+    }
+
+    /**
+     * Drop pooled bitmaps according to the memory trim level
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(maxPooledBytes / 2);
+        }
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Bitmap> iterator = pooled.iterator();
+        while (pooledBytes > maxBytes && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            int size = bitmap.getAllocationByteCount();
+            Deque<Bitmap> bucket = buckets.get(size);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                buckets.remove(size);
+            }
+            pooledBytes -= size;
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.bitifyware.zipviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide pool of reusable read buffers for encoded image data
+ * Reading an entry into a pooled buffer that is presized from the entry's
+ * uncompressed size avoids the grow-and-copy cycles of ByteArrayOutputStream,
+ * so steady-state loading allocates almost nothing besides the bitmaps.
+ */
+public class BufferPool {
+
+    // Buffer sizes are rounded up to this granularity so similar sizes can share buffers
+    private static final int SIZE_GRANULARITY = 64 * 1024;
+
+    // Initial size when the entry size is unknown
+    private static final int DEFAULT_SIZE = 256 * 1024;
+
+    private static BufferPool instance;
+
+    /**
+     * Data read into a pooled buffer. Only the first length bytes are valid.
+     */
+    public static class Buffer {
+        private byte[] data;
+        private int length;
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final List<byte[]> freeBuffers = new ArrayList<>();
+    private final long maxPooledBytes;
+    private long pooledBytes;
+
+    public static synchronized BufferPool getInstance() {
+        if (instance == null) {
+            instance = new BufferPool(Math.min(Runtime.getRuntime().maxMemory() / 8, 64L * 1024 * 1024));
+        }
+        return instance;
+    }
+
+    private BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Read a stream completely into a pooled buffer
+     * The buffer must be handed back with release() once it is no longer used.
+     *
+     * @param inputStream The stream to read
+     * @param sizeHint Expected number of bytes, or a value <= 0 if unknown
+     * @return The buffer holding the stream data
+     */
+    public Buffer read(InputStream inputStream, long sizeHint) throws IOException {
+        Buffer buffer = new Buffer();
+        int initialSize = sizeHint > 0 && sizeHint < Integer.MAX_VALUE - SIZE_GRANULARITY
+                ? (int) sizeHint + 1 : DEFAULT_SIZE;
+        buffer.data = acquire(initialSize);
+        try {
+            int nRead;
+            while ((nRead = inputStream.read(buffer.data, buffer.length,
+                    buffer.data.length - buffer.length)) != -1) {
+                buffer.length += nRead;
+                if (buffer.length == buffer.data.length) {
+                    // Size hint was wrong, move to a larger buffer
+                    byte[] larger = acquire(buffer.data.length * 2);
+                    System.arraycopy(buffer.data, 0, larger, 0, buffer.length);
+                    release(buffer.data);
+                    buffer.data = larger;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Read at most maxLength bytes from the start of a stream into a pooled buffer
+     * The stream is left positioned after the bytes that were read.
+     *
+     * @return The buffer holding the prefix, shorter than maxLength if the stream ended
+     */
+    public Buffer readPrefix(InputStream inputStream, int maxLength) throws IOException {
+        Buffer buffer = new Buffer();
+        buffer.data = acquire(maxLength);
+        try {
+            int nRead;
+            while (buffer.length < maxLength
+                    && (nRead = inputStream.read(buffer.data, buffer.length, maxLength - buffer.length)) != -1) {
+                buffer.length += nRead;
+            }
+        } catch (IOException | RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool
+     */
+    public void release(Buffer buffer) {
+        if (buffer != null && buffer.data != null) {
+            release(buffer.data);
+            buffer.data = null;
+            buffer.length = 0;
+        }
+    }
+
+    /**
+     * Get the smallest free buffer of at least the given size, or allocate one
+     */
+    private byte[] acquire(int minSize) {
+        synchronized (freeBuffers) {
+            int bestIndex = -1;
+            for (int i = 0; i < freeBuffers.size(); i++) {
+                int length = freeBuffers.get(i).length;
+                if (length >= minSize && (bestIndex < 0 || length < freeBuffers.get(bestIndex).length)) {
+                    bestIndex = i;
+                }
+            }
+            if (bestIndex >= 0) {
+                byte[] buffer = freeBuffers.remove(bestIndex);
+                pooledBytes -= buffer.length;
+                return buffer;
+            }
+        }
+        long rounded = ((long) minSize + SIZE_GRANULARITY - 1) / SIZE_GRANULARITY * SIZE_GRANULARITY;
+        return new byte[(int) Math.min(rounded, Integer.MAX_VALUE - 8)];
+    }
+
+    private void release(byte[] buffer) {
+        if (buffer.length > maxPooledBytes) {
+            return;
+        }
+        synchronized (freeBuffers) {
+            // Make room by dropping the smallest buffers, large ones are the costly ones to allocate
+            while (pooledBytes + buffer.length > maxPooledBytes && !freeBuffers.isEmpty()) {
+                int smallestIndex = 0;
+                for (int i = 1; i < freeBuffers.size(); i++) {
+                    if (freeBuffers.get(i).length < freeBuffers.get(smallestIndex).length) {
+                        smallestIndex = i;
+                    }
+                }
+                pooledBytes -= freeBuffers.remove(smallestIndex).length;
+            }
+            freeBuffers.add(buffer);
+            pooledBytes += buffer.length;
+        }
+    }
+}
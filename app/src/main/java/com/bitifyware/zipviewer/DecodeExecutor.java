@@ -0,0 +1,133 @@
+package com.bitifyware.zipviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded pool of background threads for image decoding
+ * Pending tasks are kept in a priority queue so the most important work
+ * (e.g. what is currently on screen) always runs first. Priorities may change
+ * over time; call reprioritize() after such a change to reorder pending tasks.
+ */
+public class DecodeExecutor {
+
+    /**
+     * A unit of decode work with a (possibly changing) priority
+     */
+    public abstract static class Task implements Runnable {
+        private volatile boolean cancelled;
+        private int queuedPriority;
+        private long sequence;
+
+        /**
+         * @return The current priority of this task, lower values run first
+         */
+        protected abstract int getPriority();
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<>(64, (a, b) -> {
+        if (a.queuedPriority != b.queuedPriority) {
+            return Integer.compare(a.queuedPriority, b.queuedPriority);
+        }
+        return Long.compare(a.sequence, b.sequence);
+    });
+    private final Thread[] workers;
+    private long nextSequence;
+    private boolean shutdown;
+
+    /**
+     * Create an executor with one worker per available CPU core
+     *
+     * @param name Name prefix for the worker threads
+     */
+    public DecodeExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    public DecodeExecutor(String name, int threadCount) {
+        workers = new Thread[Math.max(1, threadCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::workerLoop, name + "-" + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue a task for execution
+     */
+    public void execute(Task task) {
+        synchronized (queue) {
+            if (shutdown) {
+                return;
+            }
+            task.queuedPriority = task.getPriority();
+            task.sequence = nextSequence++;
+            queue.add(task);
+            queue.notify();
+        }
+    }
+
+    /**
+     * Re-evaluate the priority of every pending task and drop cancelled ones
+     */
+    public void reprioritize() {
+        synchronized (queue) {
+            List<Task> pending = new ArrayList<>(queue);
+            queue.clear();
+            for (Task task : pending) {
+                if (!task.isCancelled()) {
+                    task.queuedPriority = task.getPriority();
+                    queue.add(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop all workers. Pending tasks are discarded, running tasks finish normally.
+     */
+    public void shutdown() {
+        synchronized (queue) {
+            shutdown = true;
+            queue.clear();
+            queue.notifyAll();
+        }
+    }
+
+    private void workerLoop() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Task task;
+            synchronized (queue) {
+                while (!shutdown && queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                task = queue.poll();
+            }
+            if (task.isCancelled()) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing task must not take the worker down with it
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.bitifyware.zipviewer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decides how images are decoded for each use: the bitmap config, the size limit
+ * for viewer pages and whether the bitmap comes from the BitmapPool
+ * Opaque thumbnails use RGB_565, half the memory of ARGB_8888 at no visible cost
+ * in a gallery cell. Viewer pages are only drawn, so they become HARDWARE bitmaps
+ * that live in graphics memory instead of the Java heap. On memory constrained
+ * devices opaque pages use RGB_565 as well, which halves them everywhere.
+ * Tiles of very large pages are software bitmaps, opaque ones use RGB_565 on
+ * constrained devices too. ARGB_8888 is only used for images that may have
+ * transparency, and for bitmaps that are drawn into or encoded.
+ */
+public class DecodePolicy {
+
+    // Devices with a memory class up to this many MB are treated as constrained
+    private static final int LOW_MEMORY_CLASS = 128;
+    // Upper bound for a single viewer page, larger images are shown subsampled
+    private static final long MAX_PAGE_BYTES = 100L * 1024 * 1024;
+    private static final long MAX_PAGE_BYTES_CONSTRAINED = 32L * 1024 * 1024;
+
+    private static DecodePolicy instance;
+
+    private final boolean constrained;
+
+    public static synchronized DecodePolicy getInstance(Context context) {
+        if (instance == null) {
+            ActivityManager activityManager = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            instance = new DecodePolicy(activityManager.isLowRamDevice()
+                    || activityManager.getMemoryClass() <= LOW_MEMORY_CLASS);
+        }
+        return instance;
+    }
+
+    private DecodePolicy(boolean constrained) {
+        this.constrained = constrained;
+    }
+
+    /**
+     * @return true on low-RAM devices and devices with a small memory class
+     */
+    public boolean isConstrained() {
+        return constrained;
+    }
+
+    /**
+     * Config for a gallery thumbnail. Thumbnails are rotated and encoded for the
+     * disk cache, so they always stay in CPU memory.
+     *
+     * @param format One of the ImageProber.FORMAT_* values
+     */
+    public Bitmap.Config getThumbnailConfig(int format) {
+        return isOpaque(format) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Config for a thumbnail decoded from data with the given MIME type, e.g. from
+     * BitmapFactory.Options.outMimeType after a bounds decode
+     */
+    public Bitmap.Config getThumbnailConfig(String mimeType) {
+        return getThumbnailConfig("image/jpeg".equals(mimeType)
+                ? ImageProber.FORMAT_JPEG : ImageProber.FORMAT_UNKNOWN);
+    }
+
+    /**
+     * Config for a viewer page. Pages are only drawn, rotation is applied by the
+     * drawable, so they don't need CPU access to their pixels.
+     *
+     * @param format One of the ImageProber.FORMAT_* values
+     */
+    public Bitmap.Config getPageConfig(int format) {
+        if (constrained && isOpaque(format)) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.HARDWARE;
+    }
+
+    /**
+     * Config for a viewer page decoded from data with the given MIME type
+     */
+    public Bitmap.Config getPageConfig(String mimeType) {
+        return getPageConfig("image/jpeg".equals(mimeType)
+                ? ImageProber.FORMAT_JPEG : ImageProber.FORMAT_UNKNOWN);
+    }
+
+    /**
+     * Config for a tile of a page shown region by region. Tiles are cached and drawn
+     * in software, region decoders don't produce HARDWARE bitmaps.
+     *
+     * @param format One of the ImageProber.FORMAT_* values
+     */
+    public Bitmap.Config getTileConfig(int format) {
+        if (constrained && isOpaque(format)) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Config for the frames of an animation. Always ARGB_8888: frames are
+     * composited over the previous one and GIF declares transparency per frame,
+     * so whether a later frame needs alpha isn't known when the ring is allocated.
+     * The ring is kept small and within the page size limit instead.
+     */
+    public Bitmap.Config getFrameConfig() {
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return Upper bound in bytes for a single viewer page
+     */
+    public long getMaxPageBytes() {
+        return constrained ? MAX_PAGE_BYTES_CONSTRAINED : MAX_PAGE_BYTES;
+    }
+
+    /**
+     * Set up decode options for a config. Software bitmaps are decoded into the
+     * BitmapPool when possible, hardware bitmaps can't be reused that way.
+     *
+     * @param width Width of the encoded image
+     * @param height Height of the encoded image
+     * @param bitmapPool Pool to decode into, or null to allocate a new bitmap.
+     *                   The options must have the sample size set.
+     */
+    public static void applyTo(BitmapFactory.Options options, Bitmap.Config config, int width, int height,
+                               BitmapPool bitmapPool) {
+        options.inPreferredConfig = config;
+        if (config != Bitmap.Config.HARDWARE && bitmapPool != null) {
+            bitmapPool.prepareOptions(options, width, height);
+        }
+    }
+
+    /**
+     * @return Bytes per pixel of a config, hardware bitmaps count as ARGB_8888
+     */
+    public static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGBA_F16) {
+            return 8;
+        }
+        return 4;
+    }
+
+    /**
+     * JPEG has no alpha channel, every other format may be transparent
+     */
+    private static boolean isOpaque(int format) {
+        return format == ImageProber.FORMAT_JPEG;
+    }
+}
@@ -0,0 +1,114 @@
+package com.bitifyware.zipviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads EXIF metadata from the start of JPEG data
+ * Camera JPEGs usually embed a small preview image in their EXIF block within
+ * the first few KB, which is enough for a first gallery thumbnail without
+ * inflating and decoding the whole entry.
+ */
+public class ExifThumbnailReader {
+
+    // Never read more than this from an entry while looking for EXIF data
+    private static final int PREFIX_LIMIT = 128 * 1024;
+
+    /**
+     * Read the embedded EXIF thumbnail, rotated according to the EXIF orientation
+     *
+     * @param inputStream Stream positioned at the start of the JPEG data
+     * @param config Bitmap config for a compressed thumbnail, uncompressed ones are ARGB_8888
+     * @return The oriented thumbnail, or null if there is none
+     */
+    public static Bitmap readThumbnail(InputStream inputStream, Bitmap.Config config) {
+        try {
+            ExifInterface exif = new ExifInterface(new PrefixInputStream(inputStream, PREFIX_LIMIT));
+            if (!exif.hasThumbnail()) {
+                return null;
+            }
+            Bitmap thumbnail = null;
+            byte[] data = exif.isThumbnailCompressed() ? exif.getThumbnailBytes() : null;
+            if (data != null) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                options.inPreferredConfig = config;
+                thumbnail = BitmapPool.getInstance().decodeByteArray(data, 0, data.length, options);
+            }
+            if (thumbnail == null) {
+                thumbnail = exif.getThumbnailBitmap();
+            }
+            if (thumbnail == null) {
+                return null;
+            }
+            int orientation = exif.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            return ThumbnailGenerator.applyOrientation(thumbnail, orientation);
+        } catch (IOException | RuntimeException e) {
+            // No usable EXIF data within the prefix
+            return null;
+        }
+    }
+
+    /**
+     * Read the EXIF orientation of JPEG data held in memory
+     *
+     * @return One of the ExifInterface.ORIENTATION_* values
+     */
+    public static int readOrientation(byte[] data, int length) {
+        try {
+            ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data, 0, Math.min(length, PREFIX_LIMIT)));
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Stream that ends after a fixed number of bytes of the wrapped stream
+     */
+    static class PrefixInputStream extends InputStream {
+        private final InputStream inputStream;
+        private long remaining;
+
+        PrefixInputStream(InputStream inputStream, long limit) {
+            this.inputStream = inputStream;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = inputStream.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int nRead = inputStream.read(b, off, (int) Math.min(len, remaining));
+            if (nRead > 0) {
+                remaining -= nRead;
+            }
+            return nRead;
+        }
+
+        @Override
+        public void close() {
+            // The wrapped stream is owned by the caller
+        }
+    }
+}
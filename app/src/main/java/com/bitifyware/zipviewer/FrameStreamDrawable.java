@@ -0,0 +1,355 @@
+package com.bitifyware.zipviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Drawable playing an animation whose frames are decoded one by one while it plays
+ * Frames go through a small ring of reusable bitmaps: one is on screen, the others
+ * are decoded ahead on a decode thread, and the bitmap of a frame that was shown is
+ * reused for a later one. Memory stays at a few frames however long the animation
+ * is. At the end of the animation the source is opened again to loop.
+ * The still preview of the image defines the intrinsic size and is shown until the
+ * first frame is ready, so this drawable can replace it without moving the zoom.
+ */
+public class FrameStreamDrawable extends Drawable implements Animatable {
+
+    // Bitmaps per animation: the frame on screen plus frames decoded ahead
+    public static final int RING_SIZE = 3;
+
+    /**
+     * Decodes the frames of an animation in order from a stream
+     */
+    public interface FrameSource extends Closeable {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Draw the next frame onto the canvas, which holds the previous frame
+         *
+         * @param canvas getWidth() * getHeight() ARGB pixels
+         * @return The display time of the frame in ms, or -1 at the end of the animation
+         */
+        int readFrame(int[] canvas) throws IOException;
+    }
+
+    /**
+     * Opens the frame source from the start, called on a decode thread
+     */
+    public interface FrameSourceFactory {
+        FrameSource open() throws IOException;
+    }
+
+    private static class Frame {
+        final Bitmap bitmap;
+        final int duration;
+
+        Frame(Bitmap bitmap, int duration) {
+            this.bitmap = bitmap;
+            this.duration = duration;
+        }
+    }
+
+    private final Bitmap preview;
+    private final int width;
+    private final int height;
+    private final Bitmap.Config frameConfig;
+    private final FrameSourceFactory sourceFactory;
+    private final DecodeExecutor executor;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable advance = this::showNextFrame;
+
+    // Guarded by this
+    private final ArrayDeque<Bitmap> freeFrames = new ArrayDeque<>();
+    private final ArrayDeque<Frame> readyFrames = new ArrayDeque<>();
+    private int allocatedFrames;
+    private Bitmap currentFrame;
+    private boolean running;
+    private boolean decoding;
+    private boolean waitingForFrame;
+    // Set when there is nothing more to decode: a still image, or the source failed
+    private boolean finished;
+    private volatile boolean closed;
+
+    // Only touched by the decode task, of which at most one is pending, and by close()
+    private final Object sourceLock = new Object();
+    private FrameSource source;
+    private int[] canvasPixels;
+    private int framesInPass;
+
+    /**
+     * @param preview Still image shown until the first frame is decoded, may be subsampled
+     * @param width Width of the animation frames
+     * @param height Height of the animation frames
+     * @param frameConfig Config of the frame bitmaps, from the DecodePolicy
+     * @param sourceFactory Source of the frames
+     * @param executor Executor for frame decodes
+     */
+    public FrameStreamDrawable(Bitmap preview, int width, int height, Bitmap.Config frameConfig,
+                               FrameSourceFactory sourceFactory, DecodeExecutor executor) {
+        this.preview = preview;
+        this.width = width;
+        this.height = height;
+        this.frameConfig = frameConfig;
+        this.sourceFactory = sourceFactory;
+        this.executor = executor;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            if (running || closed) {
+                return;
+            }
+            running = true;
+            scheduleDecode();
+        }
+        scheduleSelf(advance, SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            waitingForFrame = false;
+        }
+        unscheduleSelf(advance);
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop playing and hand the frame bitmaps to the BitmapPool
+     * The drawable shows nothing afterwards.
+     */
+    public void close() {
+        stop();
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Frame frame : readyFrames) {
+                bitmapPool.put(frame.bitmap);
+            }
+            readyFrames.clear();
+            for (Bitmap bitmap : freeFrames) {
+                bitmapPool.put(bitmap);
+            }
+            freeFrames.clear();
+            bitmapPool.put(currentFrame);
+            currentFrame = null;
+        }
+        // Waits for a running decode, a pending one won't open the source again
+        synchronized (sourceLock) {
+            closeSource();
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Bitmap frame;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            frame = currentFrame;
+        }
+        Rect bounds = getBounds();
+        canvas.drawBitmap(frame != null ? frame : preview, null, bounds, paint);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return preview.getWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return preview.getHeight();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    /**
+     * Show the next decoded frame and schedule the one after it, on the main thread
+     */
+    private void showNextFrame() {
+        Frame next;
+        synchronized (this) {
+            waitingForFrame = false;
+            if (!running || closed) {
+                return;
+            }
+            next = readyFrames.poll();
+            if (next == null) {
+                // Decoding fell behind, show the frame as soon as it is ready
+                waitingForFrame = !finished;
+                return;
+            }
+            if (currentFrame != null) {
+                freeFrames.add(currentFrame);
+            }
+            currentFrame = next.bitmap;
+            scheduleDecode();
+        }
+        invalidateSelf();
+        scheduleSelf(advance, SystemClock.uptimeMillis() + next.duration);
+    }
+
+    /**
+     * Queue the decode of the next frame if a bitmap is free for it. Call with the lock held.
+     */
+    private void scheduleDecode() {
+        if (!running || decoding || finished || closed) {
+            return;
+        }
+        Bitmap target = freeFrames.poll();
+        if (target == null) {
+            if (allocatedFrames >= RING_SIZE) {
+                return;
+            }
+            target = BitmapPool.getInstance().get(width, height, frameConfig);
+            if (target == null) {
+                target = Bitmap.createBitmap(width, height, frameConfig);
+            }
+            target.setHasAlpha(true);
+            allocatedFrames++;
+        }
+        decoding = true;
+        executor.execute(new FrameRequest(target));
+    }
+
+    /**
+     * Close the frame source. Call with the source lock held.
+     */
+    private void closeSource() {
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                // Nothing left to read from it anyway
+            }
+            source = null;
+        }
+    }
+
+    /**
+     * Decode of the next frame into a free bitmap of the ring
+     */
+    private class FrameRequest extends DecodeExecutor.Task {
+        private final Bitmap target;
+
+        FrameRequest(Bitmap target) {
+            this.target = target;
+        }
+
+        @Override
+        protected int getPriority() {
+            return 0;
+        }
+
+        @Override
+        public void run() {
+            int duration = -1;
+            synchronized (sourceLock) {
+                if (!closed) {
+                    try {
+                        duration = readFrame();
+                        if (duration < 0 && framesInPass > 1) {
+                            // End of the animation, loop
+                            closeSource();
+                            duration = readFrame();
+                        }
+                        if (duration >= 0) {
+                            framesInPass++;
+                            target.setPixels(canvasPixels, 0, width, 0, 0, width, height);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // Truncated or broken animation, keep showing what was decoded
+                        duration = -1;
+                    }
+                    if (duration < 0) {
+                        closeSource();
+                    }
+                }
+            }
+
+            boolean wasClosed;
+            synchronized (FrameStreamDrawable.this) {
+                decoding = false;
+                wasClosed = closed;
+                if (!closed) {
+                    if (duration < 0) {
+                        finished = true;
+                        freeFrames.add(target);
+                    } else {
+                        readyFrames.add(new Frame(target, duration));
+                        if (waitingForFrame) {
+                            waitingForFrame = false;
+                            mainHandler.post(advance);
+                        }
+                        scheduleDecode();
+                    }
+                }
+            }
+            if (wasClosed) {
+                BitmapPool.getInstance().put(target);
+            }
+        }
+
+        /**
+         * Read the next frame onto the canvas, opening the source for a new pass if needed
+         */
+        private int readFrame() throws IOException {
+            if (source == null) {
+                source = sourceFactory.open();
+                if (source.getWidth() != width || source.getHeight() != height) {
+                    throw new IOException("Frame size changed");
+                }
+                if (canvasPixels == null) {
+                    canvasPixels = new int[width * height];
+                } else {
+                    Arrays.fill(canvasPixels, 0);
+                }
+                framesInPass = 0;
+            }
+            return source.readFrame(canvasPixels);
+        }
+    }
+}
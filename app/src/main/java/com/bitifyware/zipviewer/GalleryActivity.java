@@ -1,8 +1,9 @@
 package com.bitifyware.zipviewer;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.InputType;
 import android.view.View;
 import android.widget.EditText;
@@ -16,15 +17,11 @@ import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.FileHeader;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -48,6 +45,23 @@ public class GalleryActivity extends AppCompatActivity {
     private List<ImageEntry> images;
     private PasswordManager passwordManager;
 
+    // Delay used to batch thumbnail updates into ranged adapter notifications
+    private static final long THUMBNAIL_BATCH_DELAY_MS = 100;
+
+    // Entries sniffed per batch; the first one is small so the first screen shows up quickly
+    private static final int FIRST_CLASSIFY_BATCH_SIZE = 48;
+    private static final int CLASSIFY_BATCH_SIZE = 256;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Integer> pendingThumbnailUpdates = new ArrayList<>();
+    private boolean thumbnailFlushScheduled;
+    private volatile int loadGeneration;
+    private ThumbnailLoader thumbnailLoader;
+    // The cover of the archive was handed to the catalog by this screen
+    private boolean coverRecorded;
+    // Entry table, loader and session of the archive, kept across activity instances
+    private ArchiveRegistry.Content content;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -59,6 +73,19 @@ public class GalleryActivity extends AppCompatActivity {
 
         passwordManager = new PasswordManager(this);
 
+        if (savedInstanceState != null) {
+            // An archive shown in place is gone if the process died, show its imported copy
+            File archiveFile = InPlaceArchive.restore(this, new File(archivePath));
+            if (!archiveFile.getAbsolutePath().equals(archivePath)) {
+                archivePath = archiveFile.getAbsolutePath();
+                archiveFileName = archiveFile.getName();
+                String savedPassword = passwordManager.getPassword(archiveFileName);
+                if (savedPassword != null) {
+                    password = savedPassword;
+                }
+            }
+        }
+
         imageRecyclerView = findViewById(R.id.imageRecyclerView);
         btnBack = findViewById(R.id.btnBack);
         btnGridView = findViewById(R.id.btnGridView);
@@ -67,10 +94,32 @@ public class GalleryActivity extends AppCompatActivity {
 
         archiveName.setText(archiveFileName);
 
-        images = new ArrayList<>();
+        content = ArchiveRegistry.acquire(archivePath);
+        images = content.getImages();
         imageAdapter = new ImageAdapter(images, this::onImageClick);
+        imageAdapter.setThumbnailRequester(new ImageAdapter.ThumbnailRequester() {
+            @Override
+            public void requestThumbnail(int position, ImageEntry imageEntry) {
+                if (thumbnailLoader != null) {
+                    thumbnailLoader.load(position, imageEntry);
+                }
+            }
+
+            @Override
+            public void releaseThumbnail(int position, ImageEntry imageEntry) {
+                if (thumbnailLoader != null) {
+                    thumbnailLoader.cancel(position);
+                }
+            }
+        });
         imageRecyclerView.setAdapter(imageAdapter);
         updateLayoutManager();
+        imageRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@androidx.annotation.NonNull RecyclerView recyclerView, int dx, int dy) {
+                updateVisibleRange();
+            }
+        });
 
         btnBack.setOnClickListener(v -> finish());
 
@@ -87,7 +136,12 @@ public class GalleryActivity extends AppCompatActivity {
         });
 
         updateViewButtons();
-        loadImagesFromArchive();
+        if (content.isComplete() && content.getSession() != null) {
+            // Recreated, or the viewer already rebuilt the table after process death
+            showLoadedImages();
+        } else {
+            loadImagesFromArchive();
+        }
     }
 
     @Override
@@ -103,6 +157,7 @@ public class GalleryActivity extends AppCompatActivity {
     }
 
     private void updateLayoutManager() {
+        imageAdapter.setListMode(!isGridView);
         if (isGridView) {
             imageRecyclerView.setLayoutManager(new GridLayoutManager(this, 3));
         } else {
@@ -118,56 +173,97 @@ public class GalleryActivity extends AppCompatActivity {
         btnListView.setColorFilter(!isGridView ? activeColor : inactiveColor);
     }
 
+    /**
+     * Show the complete entry table of the registry, reusing its thumbnail loader
+     * and the thumbnails that are still in memory
+     */
+    private void showLoadedImages() {
+        int generation = ++loadGeneration;
+        thumbnailLoader = content.getThumbnailLoader();
+        if (thumbnailLoader == null) {
+            thumbnailLoader = createThumbnailLoader(content.getSession(), generation);
+            content.setThumbnailLoader(thumbnailLoader);
+        } else {
+            thumbnailLoader.setListener(createThumbnailListener(generation));
+        }
+        imageRecyclerView.post(this::updateVisibleRange);
+        if (images.isEmpty()) {
+            Toast.makeText(this, "No images found in archive", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void loadImagesFromArchive() {
+        final int generation = ++loadGeneration;
+        content.setComplete(false);
         new Thread(() -> {
             try {
-                File archiveFile = new File(archivePath);
-                ZipFile zipFile = new ZipFile(archiveFile);
+                // The session is shared with the viewer and usually already opened by
+                // the archive list, so the central directory is parsed at most once
+                ArchiveSession session = ArchiveSession.acquire(new File(archivePath));
+                ArchiveIndex archiveIndex = session.getIndex();
 
-                // Set password if archive is encrypted
-                if (zipFile.isEncrypted() && password != null && !password.isEmpty()) {
-                    zipFile.setPassword(password.toCharArray());
-                }
+                runOnUiThread(() -> {
+                    if (generation != loadGeneration || isDestroyed()) {
+                        session.release();
+                        return;
+                    }
+                    content.setSession(session);
+
+                    // Thumbnails are decoded on demand as cells are bound, visible items first
+                    thumbnailLoader = createThumbnailLoader(session, generation);
+                    content.setThumbnailLoader(thumbnailLoader);
 
-                List<FileHeader> fileHeaders = zipFile.getFileHeaders();
-                List<ImageEntry> loadedImages = new ArrayList<>();
-
-                // First pass: Create image entries and load thumbnails only
-                for (FileHeader fileHeader : fileHeaders) {
-                    String fileName = fileHeader.getFileName().toLowerCase();
-                    if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") ||
-                        fileName.endsWith(".png") || fileName.endsWith(".gif") ||
-                        fileName.endsWith(".bmp") || fileName.endsWith(".webp")) {
-
-                        ImageEntry imageEntry = new ImageEntry(fileHeader.getFileName());
-                        imageEntry.setFileSize(fileHeader.getUncompressedSize());
-                        imageEntry.setArchivePath(archivePath);
-                        imageEntry.setPassword(password);
-                        
-                        // Load image data into byte array
-                        InputStream inputStream = zipFile.getInputStream(fileHeader);
-                        byte[] imageData = readAllBytes(inputStream);
-                        inputStream.close();
-                        
-                        if (imageData != null && imageData.length > 0) {
-                            // Decode directly as thumbnail using efficient sampling
-                            Bitmap thumbnail = ThumbnailGenerator.decodeSampledBitmap(
-                                imageData, 300, 300
-                            );
-                            
-                            if (thumbnail != null) {
-                                imageEntry.setThumbnail(thumbnail);
-                                loadedImages.add(imageEntry);
+                    int previousCount = images.size();
+                    images.clear();
+                    if (previousCount > 0) {
+                        imageAdapter.notifyItemRangeRemoved(0, previousCount);
+                    }
+                });
+
+                // Images are detected from their content. Entries are classified in
+                // batches and appended in archive order, so the first screen of
+                // placeholders shows up before the whole archive has been sniffed.
+                ImageClassifier classifier = new ImageClassifier(session, password);
+                try {
+                    List<ArchiveIndex.Entry> entries = archiveIndex.getEntries();
+                    int batchSize = FIRST_CLASSIFY_BATCH_SIZE;
+                    for (int start = 0; start < entries.size(); start += batchSize, batchSize = CLASSIFY_BATCH_SIZE) {
+                        if (generation != loadGeneration) {
+                            return;
+                        }
+                        List<ArchiveIndex.Entry> batch = entries.subList(start, Math.min(entries.size(), start + batchSize));
+                        classifier.classify(batch);
+
+                        List<ImageEntry> batchImages = new ArrayList<>();
+                        for (ArchiveIndex.Entry indexEntry : batch) {
+                            if (indexEntry.isImage()) {
+                                batchImages.add(ArchiveRegistry.createImageEntry(indexEntry, archivePath, password));
                             }
                         }
+                        if (!batchImages.isEmpty()) {
+                            runOnUiThread(() -> {
+                                if (generation != loadGeneration) {
+                                    return;
+                                }
+                                int insertStart = images.size();
+                                images.addAll(batchImages);
+                                imageAdapter.notifyItemRangeInserted(insertStart, batchImages.size());
+                                imageRecyclerView.post(this::updateVisibleRange);
+                            });
+                        }
                     }
+                } finally {
+                    classifier.shutdown();
                 }
+                session.saveIndex();
+                ArchiveCatalog.getInstance(this).updateIndexStatus(session.getArchiveFile().getName(),
+                        ArchiveCatalog.INDEX_CLASSIFIED);
 
                 runOnUiThread(() -> {
-                    images.clear();
-                    images.addAll(loadedImages);
-                    imageAdapter.notifyDataSetChanged();
-
+                    if (generation != loadGeneration) {
+                        return;
+                    }
+                    content.setComplete(true);
                     if (images.isEmpty()) {
                         Toast.makeText(this, "No images found in archive", Toast.LENGTH_SHORT).show();
                     }
@@ -176,16 +272,21 @@ public class GalleryActivity extends AppCompatActivity {
             } catch (ZipException e) {
                 // Check if it's a password-related error
                 runOnUiThread(() -> {
-                    if (e.getMessage() != null && 
-                        (e.getMessage().contains("password") || 
-                         e.getMessage().contains("Wrong password") ||
-                         e.getMessage().contains("encrypted"))) {
+                    if (generation != loadGeneration) {
+                        return;
+                    }
+                    if (isPasswordError(e)) {
+                        loadGeneration++;
+                        thumbnailLoader = null;
+                        content.setThumbnailLoader(null);
                         // Prompt for password
                         promptForPassword();
                     } else {
                         Toast.makeText(this, "Error loading images: " + e.getMessage(), Toast.LENGTH_LONG).show();
                     }
                 });
+            } catch (InterruptedException e) {
+                // Loading was abandoned
             } catch (Exception e) {
                 runOnUiThread(() -> {
                     Toast.makeText(this, "Error loading images: " + e.getMessage(), Toast.LENGTH_LONG).show();
@@ -194,6 +295,164 @@ public class GalleryActivity extends AppCompatActivity {
         }).start();
     }
 
+    private ThumbnailLoader createThumbnailLoader(ArchiveSession session, int generation) {
+        return new ThumbnailLoader(session, password, ThumbnailDiskCache.getInstance(this),
+                DecodePolicy.getInstance(this), createThumbnailListener(generation));
+    }
+
+    private ThumbnailLoader.Listener createThumbnailListener(int generation) {
+        return new ThumbnailLoader.Listener() {
+            @Override
+            public void onThumbnailLoaded(int position) {
+                onThumbnailDecoded(generation, position);
+            }
+
+            @Override
+            public void onThumbnailFailed(int position, Exception e) {
+                onThumbnailError(generation, e);
+            }
+
+            @Override
+            public void onThumbnailEvicted(Bitmap thumbnail) {
+                // Cells pick up thumbnails on the main thread, so they are
+                // either counted as in use by now or won't see this one anymore
+                mainHandler.post(() -> BitmapPool.getInstance().recycle(thumbnail));
+            }
+        };
+    }
+
+    /**
+     * Handle a thumbnail that failed to load. A password error means the archive
+     * can't be read at all, so loading is stopped and the user is asked for it.
+     */
+    private void onThumbnailError(int generation, Exception e) {
+        if (!isPasswordError(e)) {
+            // Leave the placeholder in place for unreadable entries
+            return;
+        }
+        runOnUiThread(() -> {
+            if (generation != loadGeneration || isFinishing()) {
+                return;
+            }
+            loadGeneration++;
+            thumbnailLoader = null;
+            content.setThumbnailLoader(null);
+            promptForPassword();
+        });
+    }
+
+    private boolean isPasswordError(Exception e) {
+        return e instanceof ZipException && e.getMessage() != null &&
+            (e.getMessage().contains("password") ||
+             e.getMessage().contains("Wrong password") ||
+             e.getMessage().contains("encrypted"));
+    }
+
+    /**
+     * Pass the currently visible range to the thumbnail loader so that
+     * on-screen items are decoded first
+     */
+    private void updateVisibleRange() {
+        if (thumbnailLoader == null) {
+            return;
+        }
+        RecyclerView.LayoutManager layoutManager = imageRecyclerView.getLayoutManager();
+        int columns = layoutManager instanceof GridLayoutManager
+                ? ((GridLayoutManager) layoutManager).getSpanCount() : 1;
+        thumbnailLoader.setRequiredSize(imageRecyclerView.getWidth() / columns);
+        if (layoutManager instanceof LinearLayoutManager) {
+            LinearLayoutManager linearLayoutManager = (LinearLayoutManager) layoutManager;
+            thumbnailLoader.setVisibleRange(
+                linearLayoutManager.findFirstVisibleItemPosition(),
+                linearLayoutManager.findLastVisibleItemPosition());
+        }
+    }
+
+    /**
+     * Record that the thumbnail at the given position is ready. Updates are
+     * collected and flushed to the adapter in batches to avoid one rebind per image.
+     */
+    private void onThumbnailDecoded(int generation, int position) {
+        if (position == 0) {
+            mainHandler.post(() -> recordCover(generation));
+        }
+        synchronized (pendingThumbnailUpdates) {
+            if (generation != loadGeneration) {
+                return;
+            }
+            pendingThumbnailUpdates.add(position);
+            if (thumbnailFlushScheduled) {
+                return;
+            }
+            thumbnailFlushScheduled = true;
+        }
+        mainHandler.postDelayed(this::flushThumbnailUpdates, THUMBNAIL_BATCH_DELAY_MS);
+    }
+
+    /**
+     * Record the thumbnail of the first image as the archive's cover. The loader
+     * stores a thumbnail before it reports it, the cache is checked anyway since
+     * storing is best effort.
+     */
+    private void recordCover(int generation) {
+        if (coverRecorded || generation != loadGeneration || images.isEmpty()) {
+            return;
+        }
+        ArchiveIndex.Entry indexEntry = images.get(0).getIndexEntry();
+        if (indexEntry == null) {
+            return;
+        }
+        coverRecorded = true;
+        File archiveFile = new File(archivePath);
+        new Thread(() -> {
+            String coverKey = ThumbnailDiskCache.keyFor(archiveFile, indexEntry);
+            if (ThumbnailDiskCache.getInstance(this).contains(coverKey)) {
+                ArchiveCatalog.getInstance(this).updateCoverKey(InPlaceArchive.getArchiveName(archiveFile), coverKey);
+            }
+        }).start();
+    }
+
+    /**
+     * Notify the adapter about all pending thumbnail updates, coalescing
+     * consecutive positions into ranged change notifications
+     */
+    private void flushThumbnailUpdates() {
+        int[] positions;
+        synchronized (pendingThumbnailUpdates) {
+            thumbnailFlushScheduled = false;
+            positions = new int[pendingThumbnailUpdates.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = pendingThumbnailUpdates.get(i);
+            }
+            pendingThumbnailUpdates.clear();
+        }
+        if (positions.length == 0 || isDestroyed()) {
+            return;
+        }
+
+        Arrays.sort(positions);
+        int rangeStart = positions[0];
+        int rangeEnd = rangeStart;
+        for (int i = 1; i < positions.length; i++) {
+            int position = positions[i];
+            if (position <= rangeEnd + 1) {
+                rangeEnd = Math.max(rangeEnd, position);
+            } else {
+                notifyThumbnailRangeChanged(rangeStart, rangeEnd);
+                rangeStart = position;
+                rangeEnd = position;
+            }
+        }
+        notifyThumbnailRangeChanged(rangeStart, rangeEnd);
+    }
+
+    private void notifyThumbnailRangeChanged(int start, int end) {
+        int last = Math.min(end, images.size() - 1);
+        if (start <= last) {
+            imageAdapter.notifyItemRangeChanged(start, last - start + 1);
+        }
+    }
+
     /**
      * Prompt user to enter password for encrypted archive
      */
@@ -220,7 +479,7 @@ public class GalleryActivity extends AppCompatActivity {
             String newPassword = passwordInput.getText().toString();
             if (!newPassword.isEmpty()) {
                 password = newPassword;
-                passwordManager.savePassword(archiveFileName, newPassword);
+                passwordManager.savePassword(InPlaceArchive.getArchiveName(new File(archivePath)), newPassword);
                 Toast.makeText(this, "Password saved", Toast.LENGTH_SHORT).show();
                 dialog.dismiss();
                 loadImagesFromArchive(); // Retry loading
@@ -233,9 +492,8 @@ public class GalleryActivity extends AppCompatActivity {
     }
 
     private void onImageClick(int position) {
-        // Pass image entries and archive info to ImageViewerActivity
+        // The viewer finds the image entries in the ArchiveRegistry
         // Images will be loaded on-demand in the viewer
-        ImageViewerActivity.setSharedImageEntries(images);
         android.content.Intent intent = new android.content.Intent(this, ImageViewerActivity.class);
         intent.putExtra(ImageViewerActivity.EXTRA_POSITION, position);
         intent.putExtra(ImageViewerActivity.EXTRA_ARCHIVE_PATH, archivePath);
@@ -243,31 +501,23 @@ public class GalleryActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
-    /**
-     * Helper method to read all bytes from an InputStream
-     */
-    private byte[] readAllBytes(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[8192];
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
-        }
-        buffer.flush();
-        return buffer.toByteArray();
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapPool.getInstance().trimMemory(level);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Clean up bitmaps when activity is destroyed
-        if (images != null) {
-            for (ImageEntry entry : images) {
-                if (entry != null) {
-                    entry.recycle();
-                }
-            }
-            images.clear();
-        }
+        // Stop any in-flight loading and drop pending adapter updates
+        loadGeneration++;
+        mainHandler.removeCallbacksAndMessages(null);
+        thumbnailLoader = null;
+        // Cells stop showing thumbnails; the registry hands them to the pool once
+        // no screen of this archive is left, a recreated gallery keeps them
+        imageAdapter.releaseThumbnails();
+        ArchiveRegistry.release(content);
+        content = null;
     }
 }
@@ -0,0 +1,392 @@
+package com.bitifyware.zipviewer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes the frames of a GIF one at a time while reading it from a stream
+ * Only the current frame's color indices and the composited canvas are held in
+ * memory, so animations of any length play with constant memory. The stream is
+ * read front to back exactly once; to loop, decode a new stream.
+ */
+public class GifStreamDecoder implements FrameStreamDrawable.FrameSource {
+
+    // LZW codes are at most 12 bits
+    private static final int MAX_STACK_SIZE = 4096;
+    // Browsers show frames with a delay below 20ms for 100ms, so does this decoder
+    private static final int MIN_DELAY_MS = 20;
+    private static final int DEFAULT_DELAY_MS = 100;
+
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private final InputStream inputStream;
+    private final int width;
+    private final int height;
+    private final int[] globalColorTable;
+    private final int[] localColorTable = new int[256];
+    private final byte[] block = new byte[256];
+
+    // Graphic control of the next frame
+    private int disposal;
+    private int delay;
+    private int transparentIndex = -1;
+
+    // Area and disposal of the last frame, applied before the next one is drawn
+    private int lastDisposal;
+    private int lastX;
+    private int lastY;
+    private int lastWidth;
+    private int lastHeight;
+    // Canvas before the last frame, only kept for frames disposed to the previous state
+    private int[] restoreCanvas;
+
+    // LZW decoding state, reused for every frame
+    private final short[] prefix = new short[MAX_STACK_SIZE];
+    private final byte[] suffix = new byte[MAX_STACK_SIZE];
+    private final byte[] pixelStack = new byte[MAX_STACK_SIZE + 1];
+    private byte[] pixels;
+
+    /**
+     * Read the GIF header
+     *
+     * @param inputStream Stream positioned at the start of the GIF, closed by close()
+     */
+    public GifStreamDecoder(InputStream inputStream) throws IOException {
+        this.inputStream = new BufferedInputStream(inputStream, 16 * 1024);
+        readFully(block, 6);
+        if (block[0] != 'G' || block[1] != 'I' || block[2] != 'F') {
+            throw new IOException("Not a GIF");
+        }
+        width = readUInt16();
+        height = readUInt16();
+        int packed = readByte();
+        // Background color index and pixel aspect ratio
+        readByte();
+        readByte();
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid GIF size " + width + "x" + height);
+        }
+        globalColorTable = (packed & 0x80) != 0 ? readColorTable(new int[256], 2 << (packed & 7)) : null;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Draw the next frame onto the canvas, which must hold the previous frame
+     *
+     * @param canvas width * height ARGB pixels, all transparent before the first frame
+     * @return The display time of the frame in ms, or -1 at the end of the GIF
+     */
+    @Override
+    public int readFrame(int[] canvas) throws IOException {
+        applyDisposal(canvas);
+        while (true) {
+            int code = inputStream.read();
+            switch (code) {
+                case 0x21:
+                    // Extension, only the graphic control matters
+                    if (readByte() == 0xF9) {
+                        readGraphicControl();
+                    } else {
+                        skipBlocks();
+                    }
+                    break;
+                case 0x2C:
+                    return readImage(canvas);
+                case 0x00:
+                    // Padding some encoders leave between blocks
+                    break;
+                default:
+                    // Trailer, end of stream, or garbage after the last frame
+                    return -1;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    private void readGraphicControl() throws IOException {
+        int size = readBlock();
+        if (size >= 4) {
+            int packed = block[0] & 0xFF;
+            disposal = (packed >> 2) & 7;
+            delay = ((block[1] & 0xFF) | ((block[2] & 0xFF) << 8)) * 10;
+            transparentIndex = (packed & 1) != 0 ? block[3] & 0xFF : -1;
+        }
+        if (size > 0) {
+            skipBlocks();
+        }
+    }
+
+    private int readImage(int[] canvas) throws IOException {
+        int x = readUInt16();
+        int y = readUInt16();
+        int frameWidth = readUInt16();
+        int frameHeight = readUInt16();
+        int packed = readByte();
+        boolean interlaced = (packed & 0x40) != 0;
+        int[] colorTable = globalColorTable;
+        if ((packed & 0x80) != 0) {
+            Arrays.fill(localColorTable, 0);
+            colorTable = readColorTable(localColorTable, 2 << (packed & 7));
+        } else if (colorTable == null) {
+            // No color table at all, show black
+            Arrays.fill(localColorTable, 0xFF000000);
+            colorTable = localColorTable;
+        }
+
+        if (disposal == DISPOSE_PREVIOUS) {
+            if (restoreCanvas == null) {
+                restoreCanvas = new int[canvas.length];
+            }
+            System.arraycopy(canvas, 0, restoreCanvas, 0, canvas.length);
+        }
+
+        int pixelCount = frameWidth * frameHeight;
+        if (pixels == null || pixels.length < pixelCount) {
+            pixels = new byte[pixelCount];
+        }
+        decodePixels(pixelCount);
+        drawPixels(canvas, colorTable, x, y, frameWidth, frameHeight, interlaced);
+
+        lastDisposal = disposal;
+        lastX = x;
+        lastY = y;
+        lastWidth = frameWidth;
+        lastHeight = frameHeight;
+        int frameDelay = delay < MIN_DELAY_MS ? DEFAULT_DELAY_MS : delay;
+        disposal = 0;
+        delay = 0;
+        transparentIndex = -1;
+        return frameDelay;
+    }
+
+    /**
+     * Undo the last frame as its disposal method asks
+     */
+    private void applyDisposal(int[] canvas) {
+        int left = Math.min(width, lastX);
+        int right = Math.min(width, lastX + lastWidth);
+        int bottom = Math.min(height, lastY + lastHeight);
+        if (lastDisposal == DISPOSE_BACKGROUND) {
+            // Browsers clear to transparent rather than the background color
+            for (int row = lastY; row < bottom; row++) {
+                Arrays.fill(canvas, row * width + left, row * width + right, 0);
+            }
+        } else if (lastDisposal == DISPOSE_PREVIOUS && restoreCanvas != null) {
+            for (int row = lastY; row < bottom; row++) {
+                int offset = row * width + left;
+                System.arraycopy(restoreCanvas, offset, canvas, offset, right - left);
+            }
+        }
+        lastDisposal = 0;
+    }
+
+    /**
+     * Decode the LZW compressed color indices of a frame into pixels
+     */
+    private void decodePixels(int pixelCount) throws IOException {
+        int dataSize = readByte();
+        if (dataSize > 11) {
+            throw new IOException("Invalid LZW code size " + dataSize);
+        }
+        int clear = 1 << dataSize;
+        int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        for (int code = 0; code < clear; code++) {
+            prefix[code] = 0;
+            suffix[code] = (byte) code;
+        }
+
+        int datum = 0;
+        int bits = 0;
+        int count = 0;
+        int blockIndex = 0;
+        int first = 0;
+        int top = 0;
+        int pixelIndex = 0;
+        boolean terminated = false;
+        while (pixelIndex < pixelCount) {
+            if (top == 0) {
+                if (bits < codeSize) {
+                    // Load bytes until there are enough bits for a code
+                    if (count == 0) {
+                        count = readBlock();
+                        if (count <= 0) {
+                            terminated = true;
+                            break;
+                        }
+                        blockIndex = 0;
+                    }
+                    datum += (block[blockIndex++] & 0xFF) << bits;
+                    bits += 8;
+                    count--;
+                    continue;
+                }
+                int code = datum & codeMask;
+                datum >>= codeSize;
+                bits -= codeSize;
+
+                if (code > available || code == endOfInformation) {
+                    break;
+                }
+                if (code == clear) {
+                    codeSize = dataSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (oldCode == -1) {
+                    pixelStack[top++] = suffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+                int inCode = code;
+                if (code == available) {
+                    pixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code > clear && top < MAX_STACK_SIZE) {
+                    pixelStack[top++] = suffix[code];
+                    code = prefix[code];
+                }
+                first = suffix[code] & 0xFF;
+                if (available >= MAX_STACK_SIZE) {
+                    break;
+                }
+                pixelStack[top++] = (byte) first;
+                prefix[available] = (short) oldCode;
+                suffix[available] = (byte) first;
+                available++;
+                if ((available & codeMask) == 0 && available < MAX_STACK_SIZE) {
+                    codeSize++;
+                    codeMask += available;
+                }
+                oldCode = inCode;
+            }
+            pixels[pixelIndex++] = pixelStack[--top];
+        }
+        // Truncated frames are padded with index 0
+        Arrays.fill(pixels, pixelIndex, pixelCount, (byte) 0);
+        if (!terminated) {
+            skipBlocks();
+        }
+    }
+
+    /**
+     * Composite the decoded color indices of a frame onto the canvas
+     */
+    private void drawPixels(int[] canvas, int[] colorTable, int x, int y, int frameWidth, int frameHeight,
+                            boolean interlaced) {
+        int pass = 1;
+        int increment = 8;
+        int interlacedRow = 0;
+        int right = Math.min(width, x + frameWidth);
+        for (int i = 0; i < frameHeight; i++) {
+            int row = i;
+            if (interlaced) {
+                while (interlacedRow >= frameHeight && pass < 4) {
+                    pass++;
+                    switch (pass) {
+                        case 2:
+                            interlacedRow = 4;
+                            break;
+                        case 3:
+                            interlacedRow = 2;
+                            increment = 4;
+                            break;
+                        default:
+                            interlacedRow = 1;
+                            increment = 2;
+                            break;
+                    }
+                }
+                row = interlacedRow;
+                interlacedRow += increment;
+            }
+            row += y;
+            if (row >= height) {
+                continue;
+            }
+            int source = i * frameWidth;
+            int target = row * width + x;
+            for (int column = x; column < right; column++, source++, target++) {
+                int index = pixels[source] & 0xFF;
+                if (index != transparentIndex) {
+                    canvas[target] = colorTable[index];
+                }
+            }
+        }
+    }
+
+    private int[] readColorTable(int[] table, int size) throws IOException {
+        byte[] rgb = new byte[size * 3];
+        readFully(rgb, rgb.length);
+        for (int i = 0, j = 0; i < size; i++) {
+            table[i] = 0xFF000000 | ((rgb[j++] & 0xFF) << 16) | ((rgb[j++] & 0xFF) << 8) | (rgb[j++] & 0xFF);
+        }
+        return table;
+    }
+
+    /**
+     * Read one data sub-block into block
+     *
+     * @return The size of the block, 0 for the terminator
+     */
+    private int readBlock() throws IOException {
+        int size = readByte();
+        if (size > 0) {
+            readFully(block, size);
+        }
+        return size;
+    }
+
+    private void skipBlocks() throws IOException {
+        while (readBlock() > 0) {
+            // Skip up to the block terminator
+        }
+    }
+
+    private int readByte() throws IOException {
+        int value = inputStream.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private int readUInt16() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = inputStream.read(buffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+}
@@ -9,7 +9,10 @@ import android.widget.ImageView;
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Adapter for displaying images in gallery
@@ -18,16 +21,53 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ImageViewHol
 
     private List<ImageEntry> images;
     private OnImageClickListener clickListener;
+    private ThumbnailRequester thumbnailRequester;
+    private RecyclerView recyclerView;
+    private boolean listMode;
+    // Cells that show a thumbnail, including detached ones the RecyclerView still caches
+    private final Set<ImageViewHolder> shownHolders = new HashSet<>();
 
     public interface OnImageClickListener {
         void onImageClick(int position);
     }
 
+    /**
+     * Receives thumbnail requests as cells are bound and released
+     */
+    public interface ThumbnailRequester {
+        void requestThumbnail(int position, ImageEntry imageEntry);
+        void releaseThumbnail(int position, ImageEntry imageEntry);
+    }
+
     public ImageAdapter(List<ImageEntry> images, OnImageClickListener clickListener) {
         this.images = images;
         this.clickListener = clickListener;
     }
 
+    public void setThumbnailRequester(ThumbnailRequester thumbnailRequester) {
+        this.thumbnailRequester = thumbnailRequester;
+    }
+
+    /**
+     * In list mode cells take the aspect ratio of their image when its
+     * dimensions are known, instead of the fixed grid cell height
+     */
+    public void setListMode(boolean listMode) {
+        this.listMode = listMode;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        this.recyclerView = null;
+    }
+
     @NonNull
     @Override
     public ImageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -39,15 +79,23 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ImageViewHol
     @Override
     public void onBindViewHolder(@NonNull ImageViewHolder holder, int position) {
         ImageEntry imageEntry = images.get(position);
+        holder.boundPosition = position;
+        holder.boundEntry = imageEntry;
+        updateCellHeight(holder, imageEntry);
         
         // Show thumbnail if available, otherwise show placeholder
-        if (imageEntry.hasThumbnail()) {
-            holder.imageView.setImageBitmap(imageEntry.getThumbnail());
+        Bitmap thumbnail = imageEntry.getThumbnail();
+        showThumbnail(holder, thumbnail);
+        if (thumbnail != null) {
+            holder.imageView.setImageBitmap(thumbnail);
             holder.imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
         } else {
-            // Show placeholder icon while loading
+            // Show placeholder icon and ask for the thumbnail
             holder.imageView.setImageResource(R.drawable.ic_image_placeholder);
             holder.imageView.setScaleType(ImageView.ScaleType.CENTER);
+            if (thumbnailRequester != null) {
+                thumbnailRequester.requestThumbnail(position, imageEntry);
+            }
         }
         
         holder.itemView.setOnClickListener(v -> {
@@ -60,6 +108,70 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ImageViewHol
         });
     }
 
+    /**
+     * Reserve the cell height for an image before it is decoded
+     */
+    private void updateCellHeight(@NonNull ImageViewHolder holder, ImageEntry imageEntry) {
+        int height = holder.defaultHeight;
+        ArchiveIndex.Entry indexEntry = imageEntry.getIndexEntry();
+        if (listMode && indexEntry != null && recyclerView != null && recyclerView.getWidth() > 0) {
+            int imageWidth = indexEntry.getWidth();
+            int imageHeight = indexEntry.getHeight();
+            if (imageWidth > 0 && imageHeight > 0) {
+                int cellWidth = recyclerView.getWidth();
+                // Limit very tall images to twice the cell width
+                height = (int) Math.min((long) cellWidth * imageHeight / imageWidth, cellWidth * 2L);
+            }
+        }
+        ViewGroup.LayoutParams layoutParams = holder.imageView.getLayoutParams();
+        if (layoutParams.height != height) {
+            layoutParams.height = height;
+            holder.imageView.setLayoutParams(layoutParams);
+        }
+    }
+
+    /**
+     * Track the thumbnail a cell shows, so it isn't reused by the BitmapPool meanwhile
+     */
+    private void showThumbnail(@NonNull ImageViewHolder holder, Bitmap thumbnail) {
+        if (holder.shownThumbnail == thumbnail) {
+            return;
+        }
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        bitmapPool.markInUse(thumbnail);
+        bitmapPool.markUnused(holder.shownThumbnail);
+        holder.shownThumbnail = thumbnail;
+        if (thumbnail != null) {
+            shownHolders.add(holder);
+        } else {
+            shownHolders.remove(holder);
+        }
+    }
+
+    /**
+     * Stop tracking the thumbnails of all cells, e.g. because the gallery is closing
+     */
+    public void releaseThumbnails() {
+        for (ImageViewHolder holder : new ArrayList<>(shownHolders)) {
+            holder.imageView.setImageDrawable(null);
+            showThumbnail(holder, null);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ImageViewHolder holder) {
+        super.onViewRecycled(holder);
+        // Let go of the thumbnail, so it can be reused once it leaves the memory cache
+        holder.imageView.setImageDrawable(null);
+        showThumbnail(holder, null);
+        // The cell is off-screen now, its thumbnail is no longer urgent
+        if (holder.boundEntry != null && thumbnailRequester != null && !holder.boundEntry.hasThumbnail()) {
+            thumbnailRequester.releaseThumbnail(holder.boundPosition, holder.boundEntry);
+        }
+        holder.boundEntry = null;
+        holder.boundPosition = RecyclerView.NO_POSITION;
+    }
+
     @Override
     public int getItemCount() {
         return images.size();
@@ -67,10 +179,15 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ImageViewHol
 
     static class ImageViewHolder extends RecyclerView.ViewHolder {
         ImageView imageView;
+        ImageEntry boundEntry;
+        Bitmap shownThumbnail;
+        int boundPosition = RecyclerView.NO_POSITION;
+        final int defaultHeight;
 
         public ImageViewHolder(@NonNull View itemView) {
             super(itemView);
             imageView = itemView.findViewById(R.id.imageView);
+            defaultHeight = imageView.getLayoutParams().height;
         }
     }
 }
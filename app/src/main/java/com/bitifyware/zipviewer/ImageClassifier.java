@@ -0,0 +1,103 @@
+package com.bitifyware.zipviewer;
+
+import net.lingala.zip4j.exception.ZipException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Detects which entries of an archive are images by sniffing their first bytes
+ * Entries are classified in parallel and the result is stored in the ArchiveIndex,
+ * so only entries that were never classified before cost any reading.
+ */
+public class ImageClassifier {
+
+    private final ArchiveSession session;
+    private final String password;
+    private ExecutorService executorService;
+
+    public ImageClassifier(ArchiveSession session, String password) {
+        this.session = session;
+        this.password = password;
+    }
+
+    /**
+     * Classify all entries of the list that haven't been classified yet, blocking until done
+     *
+     * @throws ZipException if an encrypted entry can't be read, e.g. because of a wrong password
+     */
+    public void classify(List<ArchiveIndex.Entry> entries) throws IOException, InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (ArchiveIndex.Entry entry : entries) {
+            if (entry.getFormat() == ImageProber.FORMAT_UNCHECKED) {
+                tasks.add(() -> {
+                    classify(entry);
+                    return null;
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        for (Future<Void> future : executorService.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public void shutdown() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+
+    private void classify(ArchiveIndex.Entry entry) throws ZipException {
+        byte[] header = new byte[ImageProber.SNIFF_SIZE];
+        int length = 0;
+        try (InputStream inputStream = session.openEntry(entry, password)) {
+            int nRead;
+            while (length < header.length
+                    && (nRead = inputStream.read(header, length, header.length - length)) != -1) {
+                length += nRead;
+            }
+        } catch (ZipException e) {
+            if (entry.isEncrypted()) {
+                // Most likely a missing or wrong password, the caller has to handle it
+                throw e;
+            }
+            // Unreadable entry, leave it unclassified so it is retried next time
+            return;
+        } catch (IOException e) {
+            return;
+        }
+        int format = ImageProber.sniff(header, length);
+        if (format == ImageProber.FORMAT_UNKNOWN && entry.isEncrypted()) {
+            // ZipCrypto lets about one wrong password in 256 through its check byte and
+            // decrypts to garbage, so only a recognized image proves the password right.
+            // Leave the entry unclassified rather than persisting it as no image.
+            return;
+        }
+        session.getIndex().updateFormat(entry, format);
+    }
+}
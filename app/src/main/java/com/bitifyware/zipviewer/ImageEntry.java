@@ -8,11 +8,12 @@ import android.graphics.Bitmap;
 public class ImageEntry {
     private String fileName;
     private Bitmap fullBitmap;
-    private Bitmap thumbnail;
-    private boolean thumbnailLoading;
+    private volatile Bitmap thumbnail;
+    private volatile boolean thumbnailLoading;
     private long fileSize;
     private String archivePath;
     private String password;
+    private ArchiveIndex.Entry indexEntry;
 
     public ImageEntry(String fileName) {
         this.fileName = fileName;
@@ -35,6 +36,14 @@ public class ImageEntry {
         this.password = password;
     }
 
+    public ArchiveIndex.Entry getIndexEntry() {
+        return indexEntry;
+    }
+
+    public void setIndexEntry(ArchiveIndex.Entry indexEntry) {
+        this.indexEntry = indexEntry;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -84,19 +93,18 @@ public class ImageEntry {
     }
 
     /**
-     * Clean up bitmaps to prevent memory leaks
-     * Note: While bitmap recycling is less critical in modern Android,
-     * it's still beneficial for apps handling many large images (5MB each)
-     * to explicitly recycle bitmaps to avoid OutOfMemoryError.
-     * The code checks isRecycled() before any access to prevent crashes.
+     * Hand the bitmaps over to the BitmapPool, so later decodes can reuse them
+     * A bitmap that is still shown somewhere only enters the pool once it is not anymore.
+     * Call this on the main thread.
      */
     public void recycle() {
-        if (thumbnail != null && !thumbnail.isRecycled()) {
-            thumbnail.recycle();
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        if (thumbnail != null) {
+            bitmapPool.recycle(thumbnail);
             thumbnail = null;
         }
-        if (fullBitmap != null && !fullBitmap.isRecycled()) {
-            fullBitmap.recycle();
+        if (fullBitmap != null) {
+            bitmapPool.recycle(fullBitmap);
             fullBitmap = null;
         }
     }
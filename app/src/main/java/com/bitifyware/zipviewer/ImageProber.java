@@ -0,0 +1,332 @@
+package com.bitifyware.zipviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the format and dimensions of an image from its first bytes
+ * Formats are detected by their magic bytes rather than the file name. Dimensions
+ * are read from JPEG (SOF markers), PNG (IHDR), WebP (VP8, VP8L and VP8X), GIF and
+ * BMP headers, so the sample size can be chosen before any pixel data is decoded.
+ */
+public class ImageProber {
+
+    // Number of bytes read from the start of an entry for probing
+    public static final int PROBE_SIZE = 64 * 1024;
+
+    // Number of bytes needed to detect the format
+    public static final int SNIFF_SIZE = 32;
+
+    // Format has not been detected yet
+    public static final int FORMAT_UNCHECKED = -1;
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_JPEG = 1;
+    public static final int FORMAT_PNG = 2;
+    public static final int FORMAT_WEBP = 3;
+    public static final int FORMAT_GIF = 4;
+    public static final int FORMAT_BMP = 5;
+
+    // countGifImages() reached the end of the data before it could tell
+    public static final int GIF_IMAGES_UNKNOWN = -1;
+
+    private static final int GIF_IMAGE_DESCRIPTOR = 0x2C;
+    private static final int GIF_EXTENSION = 0x21;
+
+    /**
+     * Result of probing an image header
+     */
+    public static class Info {
+        public final int format;
+        public final int width;
+        public final int height;
+
+        Info(int format, int width, int height) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Probe the dimensions of an image
+     *
+     * @param data Buffer holding the start of the image
+     * @param length Number of valid bytes in data
+     * @return The format and dimensions, or null if they couldn't be determined
+     */
+    public static Info probe(byte[] data, int length) {
+        switch (sniff(data, length)) {
+            case FORMAT_JPEG:
+                return probeJpeg(data, length);
+            case FORMAT_PNG:
+                return probePng(data, length);
+            case FORMAT_WEBP:
+                return probeWebp(data, length);
+            case FORMAT_GIF:
+                return length >= 10 ? new Info(FORMAT_GIF, readUInt16LE(data, 6), readUInt16LE(data, 8)) : null;
+            case FORMAT_BMP:
+                return probeBmp(data, length);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Check whether an image may be animated. GIFs only tell by their frame count:
+     * one is animated once a second frame shows up in the data, and may be if the
+     * data ends before the count is known. WebP files declare animation in their
+     * extended header.
+     *
+     * @param data Buffer holding the start of the image
+     * @param length Number of valid bytes in data
+     */
+    public static boolean isAnimated(byte[] data, int length) {
+        switch (sniff(data, length)) {
+            case FORMAT_GIF:
+                try {
+                    int images = countGifImages(new ByteArrayInputStream(data, 0, length), 2);
+                    return images >= 2 || images == GIF_IMAGES_UNKNOWN;
+                } catch (IOException e) {
+                    // Not thrown by a byte array
+                    return true;
+                }
+            case FORMAT_WEBP:
+                // VP8X chunk with the animation flag
+                return length >= 21 && data[12] == 'V' && data[13] == 'P' && data[14] == '8'
+                        && data[15] == 'X' && (data[20] & 0x02) != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Detect the image format from its magic bytes
+     *
+     * @param data Buffer holding the start of the file, SNIFF_SIZE bytes are enough
+     * @param length Number of valid bytes in data
+     * @return One of the FORMAT_* values, FORMAT_UNKNOWN if it is not a supported image
+     */
+    public static int sniff(byte[] data, int length) {
+        if (length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return FORMAT_JPEG;
+        }
+        if (length >= 8 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G'
+                && data[4] == 0x0D && data[5] == 0x0A && data[6] == 0x1A && data[7] == 0x0A) {
+            return FORMAT_PNG;
+        }
+        if (length >= 12 && data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return FORMAT_WEBP;
+        }
+        if (length >= 6 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8'
+                && (data[4] == '7' || data[4] == '9') && data[5] == 'a') {
+            return FORMAT_GIF;
+        }
+        if (length >= 18 && data[0] == 'B' && data[1] == 'M') {
+            // "BM" alone is too weak, also require a known DIB header size
+            int headerSize = readInt32LE(data, 14);
+            if (headerSize == 12 || headerSize == 40 || headerSize == 52 || headerSize == 56
+                    || headerSize == 64 || headerSize == 108 || headerSize == 124) {
+                return FORMAT_BMP;
+            }
+        }
+        return FORMAT_UNKNOWN;
+    }
+
+    /**
+     * Count the frames of a GIF by walking its blocks, without decoding anything
+     *
+     * @param inputStream Stream positioned at the start of the GIF
+     * @param max Count at which to stop reading, e.g. 2 to tell still from animated
+     * @return The number of image descriptors up to max, or GIF_IMAGES_UNKNOWN if the
+     *         data ended first
+     */
+    public static int countGifImages(InputStream inputStream, int max) throws IOException {
+        byte[] header = new byte[13];
+        if (!readFully(inputStream, header)) {
+            return GIF_IMAGES_UNKNOWN;
+        }
+        if (!skipColorTable(inputStream, header[10])) {
+            return GIF_IMAGES_UNKNOWN;
+        }
+        int images = 0;
+        byte[] descriptor = new byte[9];
+        while (true) {
+            int block = inputStream.read();
+            if (block == GIF_IMAGE_DESCRIPTOR) {
+                if (++images >= max) {
+                    return images;
+                }
+                // Position and size, then the flags of the local color table
+                if (!readFully(inputStream, descriptor) || !skipColorTable(inputStream, descriptor[8])
+                        || inputStream.read() < 0 || !skipSubBlocks(inputStream)) {
+                    return GIF_IMAGES_UNKNOWN;
+                }
+            } else if (block == GIF_EXTENSION) {
+                if (inputStream.read() < 0 || !skipSubBlocks(inputStream)) {
+                    return GIF_IMAGES_UNKNOWN;
+                }
+            } else if (block < 0) {
+                return GIF_IMAGES_UNKNOWN;
+            } else {
+                // The trailer, or garbage decoders stop at as well
+                return images;
+            }
+        }
+    }
+
+    private static boolean skipColorTable(InputStream inputStream, byte flags) throws IOException {
+        if ((flags & 0x80) == 0) {
+            return true;
+        }
+        return skipFully(inputStream, 3L << ((flags & 0x07) + 1));
+    }
+
+    /**
+     * Skip a chain of data sub-blocks up to its terminating empty block
+     */
+    private static boolean skipSubBlocks(InputStream inputStream) throws IOException {
+        int size;
+        while ((size = inputStream.read()) > 0) {
+            if (!skipFully(inputStream, size)) {
+                return false;
+            }
+        }
+        return size == 0;
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int nRead = inputStream.read(buffer, length, buffer.length - length);
+            if (nRead < 0) {
+                return false;
+            }
+            length += nRead;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                // skip() may stop early without being at the end, read() tells
+                if (inputStream.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+        return true;
+    }
+
+    private static Info probeJpeg(byte[] data, int length) {
+        int offset = 2;
+        while (offset + 4 <= length) {
+            if ((data[offset] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                offset++;
+                continue;
+            }
+            if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without a payload
+                offset += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of scan before any frame header
+                return null;
+            }
+            int segmentLength = readUInt16BE(data, offset + 2);
+            boolean isStartOfFrame = marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (isStartOfFrame) {
+                if (offset + 9 > length) {
+                    return null;
+                }
+                int height = readUInt16BE(data, offset + 5);
+                int width = readUInt16BE(data, offset + 7);
+                return new Info(FORMAT_JPEG, width, height);
+            }
+            offset += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    private static Info probePng(byte[] data, int length) {
+        // Signature (8) + chunk length (4) + "IHDR" (4) + width (4) + height (4)
+        if (length < 24 || data[12] != 'I' || data[13] != 'H' || data[14] != 'D' || data[15] != 'R') {
+            return null;
+        }
+        return new Info(FORMAT_PNG, readInt32BE(data, 16), readInt32BE(data, 20));
+    }
+
+    private static Info probeWebp(byte[] data, int length) {
+        if (length < 30) {
+            return null;
+        }
+        if (data[12] == 'V' && data[13] == 'P' && data[14] == '8') {
+            if (data[15] == ' ') {
+                // Lossy: frame tag (3) + start code (3) + 14 bit width and height
+                int width = readUInt16LE(data, 26) & 0x3FFF;
+                int height = readUInt16LE(data, 28) & 0x3FFF;
+                return new Info(FORMAT_WEBP, width, height);
+            } else if (data[15] == 'L') {
+                // Lossless: signature byte + 14 bit width-1 and height-1
+                int b0 = data[21] & 0xFF;
+                int b1 = data[22] & 0xFF;
+                int b2 = data[23] & 0xFF;
+                int b3 = data[24] & 0xFF;
+                int width = 1 + (((b1 & 0x3F) << 8) | b0);
+                int height = 1 + (((b3 & 0x0F) << 10) | (b2 << 2) | ((b1 & 0xC0) >> 6));
+                return new Info(FORMAT_WEBP, width, height);
+            } else if (data[15] == 'X') {
+                // Extended: flags (4) + 24 bit canvas width-1 and height-1
+                int width = 1 + readUInt24LE(data, 24);
+                int height = 1 + readUInt24LE(data, 27);
+                return new Info(FORMAT_WEBP, width, height);
+            }
+        }
+        return null;
+    }
+
+    private static Info probeBmp(byte[] data, int length) {
+        if (length < 26) {
+            return null;
+        }
+        int headerSize = readInt32LE(data, 14);
+        if (headerSize == 12) {
+            // OS/2 BITMAPCOREHEADER with 16 bit dimensions
+            return new Info(FORMAT_BMP, readUInt16LE(data, 18), readUInt16LE(data, 20));
+        }
+        // Height is negative for top-down bitmaps
+        return new Info(FORMAT_BMP, Math.abs(readInt32LE(data, 18)), Math.abs(readInt32LE(data, 22)));
+    }
+
+    private static int readUInt16BE(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readUInt16LE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readUInt24LE(byte[] data, int offset) {
+        return readUInt16LE(data, offset) | ((data[offset + 2] & 0xFF) << 16);
+    }
+
+    private static int readInt32BE(byte[] data, int offset) {
+        return (readUInt16BE(data, offset) << 16) | readUInt16BE(data, offset + 2);
+    }
+
+    private static int readInt32LE(byte[] data, int offset) {
+        return readUInt16LE(data, offset) | (readUInt16LE(data, offset + 2) << 16);
+    }
+}
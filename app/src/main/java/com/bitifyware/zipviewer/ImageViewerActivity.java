@@ -12,6 +12,8 @@ import androidx.viewpager2.widget.ViewPager2;
 
 import com.github.chrisbanes.photoview.PhotoView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,21 +25,22 @@ public class ImageViewerActivity extends AppCompatActivity {
     public static final String EXTRA_POSITION = "position";
     public static final String EXTRA_ARCHIVE_PATH = "archive_path";
     public static final String EXTRA_PASSWORD = "password";
-    
-    // Static field to hold image entries temporarily (avoids parcelable/serialization issues)
-    private static List<ImageEntry> sharedImageEntries;
+
 
     private ViewPager2 viewPager;
     private ImageButton btnBack, btnRotateLeft, btnRotateRight, btnZoomIn, btnZoomOut;
     private TextView tvImageCounter, tvSwipeHint;
     private ImageViewerAdapter adapter;
+    private ViewerPrefetcher prefetcher;
     private int currentPosition;
     private String archivePath;
     private String password;
-
-    public static void setSharedImageEntries(List<ImageEntry> entries) {
-        sharedImageEntries = entries;
-    }
+    private ArchiveSession archiveSession;
+    // Image entries shared with the gallery of the archive
+    private ArchiveRegistry.Content content;
+    // Snapshot of the entries taken when the pages are set up. The gallery keeps
+    // changing the shared table while it loads, without notifying the pager.
+    private List<ImageEntry> images;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -64,48 +67,45 @@ public class ImageViewerActivity extends AppCompatActivity {
         currentPosition = getIntent().getIntExtra(EXTRA_POSITION, 0);
         archivePath = getIntent().getStringExtra(EXTRA_ARCHIVE_PATH);
         password = getIntent().getStringExtra(EXTRA_PASSWORD);
-
-        if (sharedImageEntries == null || sharedImageEntries.isEmpty()) {
-            Toast.makeText(this, "No images available", Toast.LENGTH_SHORT).show();
-            finish();
-            return;
+        if (savedInstanceState != null) {
+            // An archive shown in place is gone if the process died, show its imported copy
+            String restoredPath = InPlaceArchive.restore(this, new File(archivePath)).getAbsolutePath();
+            if (!restoredPath.equals(archivePath)) {
+                archivePath = restoredPath;
+                String savedPassword = new PasswordManager(this).getPassword(new File(archivePath).getName());
+                if (savedPassword != null) {
+                    password = savedPassword;
+                }
+            }
         }
 
-        // Setup adapter with on-demand loading
-        adapter = new ImageViewerAdapter(this, sharedImageEntries, archivePath, password);
-        viewPager.setAdapter(adapter);
-        viewPager.setCurrentItem(currentPosition, false);
-
-        // Update counter
-        updateImageCounter(currentPosition);
-
-        // Setup page change listener
-        viewPager.registerOnPageChangeCallback(new ViewPager2.OnPageChangeCallback() {
-            @Override
-            public void onPageSelected(int position) {
-                super.onPageSelected(position);
-                currentPosition = position;
-                updateImageCounter(position);
-            }
-        });
+        content = ArchiveRegistry.acquire(archivePath);
+        // An empty table means the process was restarted on this screen, it is then read from the archive index
+        openPages(content.getImages().isEmpty());
 
         // Back button
         btnBack.setOnClickListener(v -> finish());
 
         // Rotate left button - rotates current image by -90 degrees
         btnRotateLeft.setOnClickListener(v -> {
+            if (adapter == null) {
+                return;
+            }
             float currentRotation = adapter.getRotation(currentPosition);
             float newRotation = (currentRotation - 90f) % 360f;
             adapter.saveRotation(currentPosition, newRotation);
-            adapter.notifyItemChanged(currentPosition);
+            showRotation();
         });
 
         // Rotate right button - rotates current image by 90 degrees
         btnRotateRight.setOnClickListener(v -> {
+            if (adapter == null) {
+                return;
+            }
             float currentRotation = adapter.getRotation(currentPosition);
             float newRotation = (currentRotation + 90f) % 360f;
             adapter.saveRotation(currentPosition, newRotation);
-            adapter.notifyItemChanged(currentPosition);
+            showRotation();
         });
 
         // Zoom in button
@@ -130,6 +130,98 @@ public class ImageViewerActivity extends AppCompatActivity {
         findViewById(R.id.topBar).setOnClickListener(v -> toggleUI());
     }
 
+    /**
+     * Acquire the archive session on a worker thread, since the index may have to be
+     * loaded, then show the pages
+     *
+     * @param readImages true to also read the image entries from the archive index
+     */
+    private void openPages(boolean readImages) {
+        new Thread(() -> {
+            try {
+                ArchiveSession session = ArchiveSession.acquire(new File(archivePath));
+                List<ImageEntry> images = null;
+                ArchiveSession contentSession = null;
+                if (readImages) {
+                    try {
+                        images = ArchiveRegistry.readImages(session, password);
+                        // Second reference for the content, the session is open already
+                        contentSession = ArchiveSession.acquire(new File(archivePath));
+                    } catch (IOException | InterruptedException e) {
+                        session.release();
+                        throw e;
+                    }
+                }
+                List<ImageEntry> readEntries = images;
+                ArchiveSession readSession = contentSession;
+                runOnUiThread(() -> {
+                    if (isDestroyed()) {
+                        session.release();
+                        if (readSession != null) {
+                            readSession.release();
+                        }
+                        return;
+                    }
+                    if (readEntries != null && content.getImages().isEmpty()) {
+                        content.setImages(readEntries);
+                        content.setSession(readSession);
+                    } else if (readSession != null) {
+                        readSession.release();
+                    }
+                    showPages(session);
+                });
+            } catch (IOException | InterruptedException e) {
+                runOnUiThread(() -> {
+                    if (!isDestroyed()) {
+                        Toast.makeText(this, "Error opening archive: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                        finish();
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Set up the pages once the image entries are known
+     *
+     * @param session Session of the archive, released when the viewer is destroyed
+     */
+    private void showPages(ArchiveSession session) {
+        archiveSession = session;
+        images = new ArrayList<>(content.getImages());
+        if (images.isEmpty()) {
+            Toast.makeText(this, "No images available", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        currentPosition = Math.max(0, Math.min(currentPosition, images.size() - 1));
+
+        // Setup adapter with on-demand loading
+        adapter = new ImageViewerAdapter(this, images, archiveSession, password, content.getBitmapCache(this));
+        adapter.setSelectedPosition(currentPosition);
+        viewPager.setAdapter(adapter);
+        viewPager.setCurrentItem(currentPosition, false);
+
+        // Decode the neighbours of the current page before the user swipes to them
+        prefetcher = new ViewerPrefetcher(adapter);
+        prefetcher.onPageSelected(currentPosition);
+
+        // Update counter
+        updateImageCounter(currentPosition);
+
+        // Setup page change listener
+        viewPager.registerOnPageChangeCallback(new ViewPager2.OnPageChangeCallback() {
+            @Override
+            public void onPageSelected(int position) {
+                super.onPageSelected(position);
+                currentPosition = position;
+                updateImageCounter(position);
+                adapter.setSelectedPosition(position);
+                prefetcher.onPageSelected(position);
+            }
+        });
+    }
+
     @Override
     public void onConfigurationChanged(@androidx.annotation.NonNull android.content.res.Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -138,6 +230,27 @@ public class ImageViewerActivity extends AppCompatActivity {
         // The image rotation state is preserved in the adapter
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (prefetcher != null) {
+            prefetcher.onTrimMemory(level);
+        }
+        BitmapPool.getInstance().trimMemory(level);
+    }
+
+    /**
+     * Show the current image with its new rotation, without reloading it
+     */
+    private void showRotation() {
+        PhotoView photoView = getCurrentPhotoView();
+        if (photoView != null) {
+            adapter.applyRotation(photoView, currentPosition);
+        } else {
+            adapter.notifyItemChanged(currentPosition);
+        }
+    }
+
     private PhotoView getCurrentPhotoView() {
         try {
             // Get the RecyclerView that ViewPager2 uses internally
@@ -160,8 +273,8 @@ public class ImageViewerActivity extends AppCompatActivity {
     }
 
     private void updateImageCounter(int position) {
-        if (sharedImageEntries != null) {
-            tvImageCounter.setText((position + 1) + " / " + sharedImageEntries.size());
+        if (images != null) {
+            tvImageCounter.setText((position + 1) + " / " + images.size());
         }
     }
 
@@ -179,11 +292,20 @@ public class ImageViewerActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Clean up adapter cached bitmaps
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+        // Clean up adapter cached bitmaps, a recreated viewer takes over the decoded pages
         if (adapter != null) {
-            adapter.cleanup();
+            adapter.cleanup(isChangingConfigurations());
+        }
+        if (archiveSession != null) {
+            archiveSession.release();
+            archiveSession = null;
+        }
+        if (content != null) {
+            ArchiveRegistry.release(content);
+            content = null;
         }
-        // Clear shared image entries to prevent accessing recycled bitmaps
-        sharedImageEntries = null;
     }
 }
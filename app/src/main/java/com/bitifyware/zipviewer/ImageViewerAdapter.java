@@ -3,51 +3,116 @@ package com.bitifyware.zipviewer;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageDecoder;
 import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.AnimatedImageDrawable;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.github.chrisbanes.photoview.PhotoView;
 
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.FileHeader;
-
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Adapter for ViewPager2 to display full-screen zoomable images
- * Images are loaded on-demand from the archive to prevent memory exhaustion
+ * Images are loaded on-demand from the archive to prevent memory exhaustion.
+ * Pages are first decoded subsampled to the screen size; zooming in past the
+ * detail of the shown bitmap decodes a sharper one at the zoomed size. Images too
+ * large to ever fit in a single bitmap switch to tiled rendering instead.
+ * Animated GIF and WebP pages play their frames while they are selected.
  */
 public class ImageViewerAdapter extends RecyclerView.Adapter<ImageViewerAdapter.ImageViewerViewHolder> {
 
+    // A sharper bitmap is decoded once the current one is magnified more than this on screen
+    private static final float REFINE_MAGNIFICATION = 1.5f;
+
     private Context context;
     private List<ImageEntry> imageEntries;
-    private String archivePath;
+    private ArchiveSession session;
     private String password;
-    private Map<Integer, Float> rotationMap = new HashMap<>();
-    private Map<Integer, Bitmap> loadedBitmaps = new HashMap<>();
-    private Map<Integer, Bitmap> rotatedBitmaps = new HashMap<>();
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // Rotation chosen by the user per entry, persisted across sessions
+    private final RotationManager rotationManager;
+    private final File archiveFile;
+    // Decoded pages, bounded by byte size
+    private final BitmapCache bitmapCache;
+    // Bitmap config and size limit of decoded pages
+    private final DecodePolicy decodePolicy;
+    // Full-size decodes are memory heavy, two threads keep the selected page and
+    // a neighbour going without piling up bitmaps
+    private final DecodeExecutor executor = new DecodeExecutor("viewer", 2);
+    // Pending decode per page position, shared by bound pages and prefetches
+    private final Map<Integer, PageRequest> requests = new ConcurrentHashMap<>();
+    // Tiles of images too large to show as a single bitmap, all pages and levels share the budget
+    private final DecodeExecutor tileExecutor = new DecodeExecutor("tiles", 2);
+    private final LruCache<String, Bitmap> tileCache;
+    private final Set<TiledImageDrawable> tiledImages = new HashSet<>();
+    // Animated pages decode their frames while playing, one page at a time
+    private final DecodeExecutor animationExecutor = new DecodeExecutor("animation", 1);
+    // Pages whose header says they may be animated
+    private final Set<Integer> animatedPages = ConcurrentHashMap.newKeySet();
+    // Pages that show a bitmap, including detached ones the ViewPager still caches
+    private final Set<ImageViewerViewHolder> shownHolders = new HashSet<>();
+    // Full image dimensions per page, learned while decoding
+    private final Map<Integer, int[]> imageSizes = new ConcurrentHashMap<>();
+    // EXIF orientation per page, applied while drawing
+    private final Map<Integer, Integer> orientations = new ConcurrentHashMap<>();
+    private final int screenWidth;
+    private final int screenHeight;
+    private volatile int selectedPosition;
+    private boolean released;
     private Handler mainHandler = new Handler(Looper.getMainLooper());
 
-    public ImageViewerAdapter(Context context, List<ImageEntry> imageEntries, String archivePath, String password) {
+    /**
+     * @param bitmapCache Cache of full-size pages, kept by the ArchiveRegistry so a
+     *                    recreated viewer shows the decoded pages right away
+     */
+    public ImageViewerAdapter(Context context, List<ImageEntry> imageEntries, ArchiveSession session, String password,
+                              BitmapCache bitmapCache) {
         this.context = context;
         this.imageEntries = imageEntries;
-        this.archivePath = archivePath;
+        this.session = session;
         this.password = password;
+        this.bitmapCache = bitmapCache;
+        this.decodePolicy = DecodePolicy.getInstance(context);
+        this.rotationManager = new RotationManager(context);
+        this.archiveFile = session.getArchiveFile();
+        this.tileCache = new LruCache<String, Bitmap>(bitmapCache.getMaxSize() / 4) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        this.screenWidth = displayMetrics.widthPixels;
+        this.screenHeight = displayMetrics.heightPixels;
     }
 
     @NonNull
@@ -60,17 +125,26 @@ public class ImageViewerAdapter extends RecyclerView.Adapter<ImageViewerAdapter.
 
     @Override
     public void onBindViewHolder(@NonNull ImageViewerViewHolder holder, int position) {
-        // First, show thumbnail if available
+        // Work requested for the page this holder showed before is no longer needed
+        releaseRequest(holder);
+        releaseTiles(holder);
+        releaseAnimation(holder);
+
+        // First, show thumbnail if available. It is already in display orientation.
         ImageEntry entry = imageEntries.get(position);
-        if (entry.hasThumbnail()) {
-            holder.photoView.setImageBitmap(entry.getThumbnail());
+        Bitmap thumbnail = entry.getThumbnail();
+        if (thumbnail != null) {
+            showBitmap(holder, thumbnail);
+            showDrawable(holder, new OrientedDrawable(
+                    new BitmapDrawable(context.getResources(), thumbnail),
+                    ExifInterface.ORIENTATION_NORMAL, getUserRotation(position)), false);
         }
         
         // Check if full bitmap is already loaded
-        Bitmap loadedBitmap = loadedBitmaps.get(position);
-        if (loadedBitmap != null && !isBitmapRecycled(loadedBitmap)) {
+        Bitmap loadedBitmap = bitmapCache.get(position);
+        if (loadedBitmap != null) {
             // Use cached bitmap
-            displayBitmap(holder, position, loadedBitmap);
+            displayBitmap(holder, position, loadedBitmap, false);
         } else {
             // Load bitmap from archive in background
             loadBitmapAsync(holder, position);
@@ -80,69 +154,519 @@ public class ImageViewerAdapter extends RecyclerView.Adapter<ImageViewerAdapter.
         setupPhotoView(holder);
     }
     
+    @Override
+    public void onViewRecycled(@NonNull ImageViewerViewHolder holder) {
+        super.onViewRecycled(holder);
+        releaseRequest(holder);
+        releaseTiles(holder);
+        releaseAnimation(holder);
+        holder.photoView.setImageDrawable(null);
+        showBitmap(holder, null);
+    }
+
+    /**
+     * Set the page the user is looking at. Its decode jumps ahead of all other
+     * pending work, the remaining pages are ordered by their distance to it.
+     */
+    public void setSelectedPosition(int position) {
+        if (position == selectedPosition) {
+            return;
+        }
+        selectedPosition = position;
+        executor.reprioritize();
+        updateAnimations();
+    }
+
     /**
      * Load bitmap from archive asynchronously
      */
     private void loadBitmapAsync(@NonNull ImageViewerViewHolder holder, int position) {
+        PageRequest request = requests.get(position);
+        if (request == null) {
+            request = new PageRequest(position, 0);
+            requests.put(position, request);
+            executor.execute(request);
+        }
+        // A pending prefetch of this page now serves the holder as well
+        request.holder = holder;
+        holder.request = request;
+    }
+
+    /**
+     * Detach a holder from its pending request. The decode is cancelled unless
+     * the page is still wanted by the prefetcher.
+     */
+    private void releaseRequest(@NonNull ImageViewerViewHolder holder) {
+        PageRequest request = holder.request;
+        if (request == null) {
+            return;
+        }
+        holder.request = null;
+        request.holder = null;
+        if (!request.prefetched) {
+            request.cancel();
+            requests.remove(request.position, request);
+        }
+    }
+
+    /**
+     * Decode a page into the cache ahead of time, unless it is already cached or queued.
+     * Call on the main thread.
+     */
+    public void prefetch(int position) {
+        if (released || position < 0 || position >= imageEntries.size()
+                || bitmapCache.contains(position)) {
+            return;
+        }
+        PageRequest request = requests.get(position);
+        if (request == null) {
+            request = new PageRequest(position, 0);
+            requests.put(position, request);
+            executor.execute(request);
+        }
+        request.prefetched = true;
+    }
+
+    /**
+     * Drop a prefetch that is no longer needed. A page that is bound in the
+     * meantime keeps loading. Call on the main thread.
+     */
+    public void cancelPrefetch(int position) {
+        PageRequest request = requests.get(position);
+        if (request == null) {
+            return;
+        }
+        request.prefetched = false;
+        if (request.holder == null) {
+            request.cancel();
+            requests.remove(position, request);
+        }
+    }
+
+    /**
+     * Hand a decoded page to the holder that requested it, if it still shows that page
+     */
+    private void deliver(PageRequest request, Bitmap bitmap, Exception error) {
+        ImageViewerViewHolder holder = request.holder;
+        if (released || holder == null || holder.request != request) {
+            return;
+        }
+        holder.request = null;
+        if (error != null) {
+            if (context != null) {
+                Toast.makeText(context, "Error loading image: " + error.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        } else if (bitmap != null && holder.getBindingAdapterPosition() == request.position) {
+            if (bitmapCache.peek(request.position) != bitmap) {
+                // Evicted before it could be shown, it may already be reused by another decode
+                if (request.sampleSize == 0) {
+                    loadBitmapAsync(holder, request.position);
+                }
+                return;
+            }
+            displayBitmap(holder, request.position, bitmap, request.sampleSize > 0);
+        }
+    }
+
+    /**
+     * Priority of a page: 0 for the selected one, otherwise its distance to it
+     */
+    private int priorityOf(int position) {
+        return position == selectedPosition ? 0 : 1 + Math.abs(position - selectedPosition);
+    }
+
+    /**
+     * Decode the image of a page. The header is probed first, so the sample size
+     * is known before any pixel data is decoded.
+     *
+     * @param sampleSize Power of two subsampling, or 0 to fit the screen
+     */
+    private Bitmap decodeBitmap(int position, int sampleSize) throws IOException {
+        try {
+            return decodeBitmap(position, sampleSize, BitmapPool.getInstance());
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit the decode, read the entry again into a new one
+            return decodeBitmap(position, sampleSize, null);
+        }
+    }
+
+    /**
+     * Decode the image of a page
+     *
+     * @param bitmapPool Pool to decode into, or null to allocate a new bitmap
+     */
+    private Bitmap decodeBitmap(int position, int sampleSize, BitmapPool bitmapPool) throws IOException {
         ImageEntry entry = imageEntries.get(position);
-        
-        executorService.execute(() -> {
+        BufferPool bufferPool = BufferPool.getInstance();
+        // Read the entry straight from its indexed offset with a pooled file handle
+        try (InputStream inputStream = session.openFullEntry(entry.getIndexEntry(), password)) {
+            BufferPool.Buffer header = bufferPool.readPrefix(inputStream, ImageProber.PROBE_SIZE);
             try {
-                File archiveFile = new File(archivePath);
-                ZipFile zipFile = new ZipFile(archiveFile);
-                
-                // Set password if archive is encrypted
-                if (zipFile.isEncrypted() && password != null && !password.isEmpty()) {
-                    zipFile.setPassword(password.toCharArray());
+                InputStream fullStream = new SequenceInputStream(
+                        new ByteArrayInputStream(header.getData(), 0, header.getLength()), inputStream);
+                ImageProber.Info info = ImageProber.probe(header.getData(), header.getLength());
+                if (info == null || info.width <= 0 || info.height <= 0) {
+                    return decodeBuffered(position, fullStream, sampleSize);
                 }
-                
-                FileHeader fileHeader = zipFile.getFileHeader(entry.getFileName());
-                if (fileHeader != null) {
-                    try (InputStream inputStream = zipFile.getInputStream(fileHeader)) {
-                        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                        
-                        if (bitmap != null) {
-                            // Cache the loaded bitmap
-                            loadedBitmaps.put(position, bitmap);
-                            
-                            // Update UI on main thread
-                            mainHandler.post(() -> {
-                                if (holder.getBindingAdapterPosition() == position) {
-                                    displayBitmap(holder, position, bitmap);
-                                }
-                            });
-                        }
-                    }
+                imageSizes.put(position, new int[] {info.width, info.height});
+                if (info.format == ImageProber.FORMAT_JPEG) {
+                    orientations.put(position,
+                            ExifThumbnailReader.readOrientation(header.getData(), header.getLength()));
                 }
-            } catch (Exception e) {
-                // Show error on main thread
-                mainHandler.post(() -> {
-                    if (context != null) {
-                        Toast.makeText(context, "Error loading image: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                    }
-                });
+                if (isAnimated(entry, info.format, header)) {
+                    animatedPages.add(position);
+                }
+                Bitmap.Config config = decodePolicy.getPageConfig(info.format);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = chooseSampleSize(info.width, info.height, sampleSize, config);
+                DecodePolicy.applyTo(options, config, info.width, info.height, bitmapPool);
+                return BitmapFactory.decodeStream(fullStream, null, options);
+            } finally {
+                bufferPool.release(header);
             }
-        });
+        }
     }
-    
+
     /**
-     * Display bitmap with rotation if applicable
+     * Check whether a page is animated. Single-frame GIFs are stills; when the first
+     * frame of a GIF is larger than the probed header, the entry is walked up to the
+     * second frame to tell.
      */
-    private void displayBitmap(@NonNull ImageViewerViewHolder holder, int position, Bitmap bitmap) {
-        Float savedRotation = rotationMap.get(position);
-        
-        if (savedRotation != null && savedRotation != 0f) {
-            // Use cached rotated bitmap if available
-            Bitmap rotatedBitmap = rotatedBitmaps.get(position);
-            if (rotatedBitmap == null || isBitmapRecycled(rotatedBitmap)) {
-                rotatedBitmap = rotateBitmap(bitmap, savedRotation);
-                rotatedBitmaps.put(position, rotatedBitmap);
+    private boolean isAnimated(ImageEntry entry, int format, BufferPool.Buffer header) throws IOException {
+        if (format != ImageProber.FORMAT_GIF) {
+            return ImageProber.isAnimated(header.getData(), header.getLength());
+        }
+        int images = ImageProber.countGifImages(
+                new ByteArrayInputStream(header.getData(), 0, header.getLength()), 2);
+        if (images == ImageProber.GIF_IMAGES_UNKNOWN) {
+            try (InputStream inputStream = session.openEntry(entry.getIndexEntry(), password)) {
+                images = ImageProber.countGifImages(inputStream, 2);
+            }
+        }
+        return images >= 2;
+    }
+
+    /**
+     * Fallback for images whose header couldn't be probed: read the whole entry
+     * into a pooled buffer and decode it in two passes
+     */
+    private Bitmap decodeBuffered(int position, InputStream inputStream, int sampleSize) throws IOException {
+        BufferPool bufferPool = BufferPool.getInstance();
+        ImageEntry entry = imageEntries.get(position);
+        BufferPool.Buffer imageData = bufferPool.read(inputStream, entry.getFileSize());
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(imageData.getData(), 0, imageData.getLength(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            imageSizes.put(position, new int[] {options.outWidth, options.outHeight});
+            if ("image/jpeg".equals(options.outMimeType)) {
+                orientations.put(position,
+                        ExifThumbnailReader.readOrientation(imageData.getData(), imageData.getLength()));
+            }
+            options.inPreferredConfig = decodePolicy.getPageConfig(options.outMimeType);
+            options.inSampleSize = chooseSampleSize(options.outWidth, options.outHeight, sampleSize,
+                    options.inPreferredConfig);
+            return BitmapPool.getInstance().decodeByteArray(imageData.getData(), 0, imageData.getLength(), options);
+        } finally {
+            bufferPool.release(imageData);
+        }
+    }
+
+    /**
+     * Pick the subsampling for a decode: the requested one, or the largest that
+     * still fills the screen, raised as needed to stay within the bitmap size limit
+     *
+     * @param config Config the page is decoded with
+     */
+    private int chooseSampleSize(int width, int height, int sampleSize, Bitmap.Config config) {
+        if (sampleSize <= 0) {
+            // Compare long and short sides, the page may be shown rotated
+            float fitScale = Math.min((float) Math.max(screenWidth, screenHeight) / Math.max(width, height),
+                    (float) Math.min(screenWidth, screenHeight) / Math.min(width, height));
+            sampleSize = largestSampleSize(1f / fitScale);
+        }
+        long maxBytes = Math.min(decodePolicy.getMaxPageBytes(), bitmapCache.getMaxSize() / 2);
+        int bytesPerPixel = DecodePolicy.bytesPerPixel(config);
+        while ((long) (width / sampleSize) * (height / sampleSize) * bytesPerPixel > maxBytes) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return The largest power of two that is not above maxSampleSize, at least 1
+     */
+    private static int largestSampleSize(float maxSampleSize) {
+        int sampleSize = 1;
+        while (sampleSize * 2 <= maxSampleSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decode a sharper bitmap when the user zoomed past the detail of the shown one
+     */
+    private void onScaleChanged(@NonNull ImageViewerViewHolder holder) {
+        int position = holder.getBindingAdapterPosition();
+        if (released || position == RecyclerView.NO_POSITION || holder.request != null
+                || holder.tiledImage != null || holder.animation != null) {
+            // Nothing shown yet, a decode is already pending, tiles take care of the
+            // detail, or the page plays its frames at full size
+            return;
+        }
+        int[] imageSize = imageSizes.get(position);
+        Drawable drawable = holder.photoView.getDrawable();
+        RectF displayRect = holder.photoView.getDisplayRect();
+        if (imageSize == null || drawable == null || displayRect == null) {
+            return;
+        }
+        if (canUseTiles(position, imageSize) && drawable instanceof OrientedDrawable
+                && ((OrientedDrawable) drawable).getDrawable() instanceof BitmapDrawable) {
+            Bitmap preview = ((BitmapDrawable) ((OrientedDrawable) drawable).getDrawable()).getBitmap();
+            showTiles(holder, position, imageSize, preview);
+            return;
+        }
+
+        // Compare long sides, so it doesn't matter whether the page is shown rotated
+        int imageSide = Math.max(imageSize[0], imageSize[1]);
+        int shownSide = Math.max(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+        float displayedSide = Math.max(displayRect.width(), displayRect.height());
+        if (shownSide >= imageSide || displayedSide <= shownSide * REFINE_MAGNIFICATION) {
+            return;
+        }
+        int currentSampleSize = Math.round((float) imageSide / shownSide);
+        int sampleSize = chooseSampleSize(imageSize[0], imageSize[1],
+                largestSampleSize(imageSide / displayedSide), getPageConfig(position));
+        if (sampleSize >= currentSampleSize) {
+            // Already as sharp as the bitmap size limit allows
+            return;
+        }
+
+        PageRequest previous = requests.get(position);
+        if (previous != null) {
+            if (previous.holder != null) {
+                // Another decode of the page is awaited, refine once it is shown
+                return;
+            }
+            // A leftover prefetch of the fitted page, which is shown already
+            previous.cancel();
+        }
+        PageRequest request = new PageRequest(position, sampleSize);
+        requests.put(position, request);
+        request.holder = holder;
+        holder.request = request;
+        executor.execute(request);
+    }
+
+    /**
+     * @return true if the page is too large to ever be shown at full detail as a
+     *         single bitmap, and its format can be decoded region by region
+     */
+    private boolean canUseTiles(int position, int[] imageSize) {
+        int format = imageEntries.get(position).getIndexEntry().getFormat();
+        boolean regionDecodable = format == ImageProber.FORMAT_JPEG || format == ImageProber.FORMAT_PNG
+                || format == ImageProber.FORMAT_WEBP;
+        return regionDecodable && chooseSampleSize(imageSize[0], imageSize[1], 1, getPageConfig(position)) > 1;
+    }
+
+    /**
+     * @return The config the DecodePolicy picks for a page, from its detected format
+     */
+    private Bitmap.Config getPageConfig(int position) {
+        return decodePolicy.getPageConfig(imageEntries.get(position).getIndexEntry().getFormat());
+    }
+
+    /**
+     * Replace the shown bitmap of a page by a tiled drawable, which decodes the
+     * visible part at the current zoom level on demand
+     */
+    private void showTiles(@NonNull ImageViewerViewHolder holder, int position, int[] imageSize, Bitmap preview) {
+        ArchiveIndex.Entry indexEntry = imageEntries.get(position).getIndexEntry();
+        File regionDir = new File(context.getCacheDir(), "regions");
+        Bitmap.Config tileConfig = decodePolicy.getTileConfig(indexEntry.getFormat());
+        TiledImageDrawable tiledImage = new TiledImageDrawable(preview, imageSize[0], imageSize[1], tileConfig, () -> {
+            // Region decoding needs random access, so the entry is extracted to a temporary file
+            regionDir.mkdirs();
+            File tempFile = File.createTempFile("region", ".tmp", regionDir);
+            try {
+                session.extractEntry(indexEntry, password, tempFile);
+                try (FileInputStream inputStream = new FileInputStream(tempFile)) {
+                    // The decoder keeps its own descriptor, so the file can go right away
+                    return BitmapRegionDecoder.newInstance(inputStream.getFD(), false);
+                }
+            } finally {
+                tempFile.delete();
             }
-            holder.photoView.setImageBitmap(rotatedBitmap);
+        }, tileExecutor, tileCache, position + "@");
+
+        holder.tiledImage = tiledImage;
+        showDrawable(holder, new OrientedDrawable(tiledImage, getOrientation(position), getUserRotation(position)), true);
+        tiledImages.add(tiledImage);
+        updateTileScale(holder);
+    }
+
+    /**
+     * Pass the current zoom of a page to its tiled drawable
+     */
+    private void updateTileScale(@NonNull ImageViewerViewHolder holder) {
+        RectF displayRect = holder.photoView.getDisplayRect();
+        if (holder.tiledImage != null && displayRect != null) {
+            // Long sides, the tiles may be shown rotated
+            float displayedSide = Math.max(displayRect.width(), displayRect.height());
+            int tiledSide = Math.max(holder.tiledImage.getIntrinsicWidth(), holder.tiledImage.getIntrinsicHeight());
+            holder.tiledImage.setDisplayScale(displayedSide / tiledSide);
+        }
+    }
+
+    /**
+     * Stop the tiled drawable of a holder, its page is not shown anymore
+     */
+    private void releaseTiles(@NonNull ImageViewerViewHolder holder) {
+        if (holder.tiledImage != null) {
+            holder.tiledImage.close();
+            tiledImages.remove(holder.tiledImage);
+            holder.tiledImage = null;
+        }
+    }
+
+    /**
+     * Display the decoded bitmap of a page in its EXIF and user orientation
+     */
+    private void displayBitmap(@NonNull ImageViewerViewHolder holder, int position, Bitmap bitmap,
+                               boolean keepZoom) {
+        showBitmap(holder, bitmap);
+        showDrawable(holder, new OrientedDrawable(new BitmapDrawable(context.getResources(), bitmap),
+                getOrientation(position), getUserRotation(position)), keepZoom);
+        if (!keepZoom && animatedPages.contains(position)) {
+            showAnimation(holder, position, bitmap);
+        }
+    }
+
+    /**
+     * Replace the still bitmap of an animated page by a drawable playing its frames
+     * GIF frames are decoded from the entry stream into a small ring of bitmaps.
+     * Animated WebP is left to the platform decoder, which is available from Android 9.
+     * Animations whose frames wouldn't fit the page size limit stay still.
+     */
+    private void showAnimation(@NonNull ImageViewerViewHolder holder, int position, Bitmap preview) {
+        int[] imageSize = imageSizes.get(position);
+        if (holder.animation != null || imageSize == null) {
+            return;
+        }
+        Bitmap.Config frameConfig = decodePolicy.getFrameConfig();
+        long frameBytes = (long) imageSize[0] * imageSize[1] * DecodePolicy.bytesPerPixel(frameConfig);
+        if (frameBytes * (FrameStreamDrawable.RING_SIZE + 1) > decodePolicy.getMaxPageBytes()) {
+            return;
+        }
+        ArchiveIndex.Entry indexEntry = imageEntries.get(position).getIndexEntry();
+        if (indexEntry.getFormat() == ImageProber.FORMAT_GIF) {
+            FrameStreamDrawable animation = new FrameStreamDrawable(preview, imageSize[0], imageSize[1], frameConfig, () -> {
+                InputStream inputStream = session.openEntry(indexEntry, password);
+                try {
+                    return new GifStreamDecoder(inputStream);
+                } catch (IOException | RuntimeException e) {
+                    inputStream.close();
+                    throw e;
+                }
+            }, animationExecutor);
+            holder.animation = animation;
+            showDrawable(holder, new OrientedDrawable(animation, getOrientation(position), getUserRotation(position)), true);
+            updateAnimations();
+        } else if (indexEntry.getFormat() == ImageProber.FORMAT_WEBP
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            animationExecutor.execute(new AnimatedWebpRequest(holder, position, indexEntry));
+        }
+    }
+
+    /**
+     * Play the animation of the selected page only, others are paused
+     */
+    private void updateAnimations() {
+        for (ImageViewerViewHolder holder : shownHolders) {
+            if (holder.animation instanceof Animatable) {
+                Animatable animatable = (Animatable) holder.animation;
+                if (holder.getBindingAdapterPosition() == selectedPosition) {
+                    animatable.start();
+                } else {
+                    animatable.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the animation of a holder, its page is not shown anymore
+     */
+    private void releaseAnimation(@NonNull ImageViewerViewHolder holder) {
+        if (holder.animation instanceof FrameStreamDrawable) {
+            ((FrameStreamDrawable) holder.animation).close();
+        } else if (holder.animation instanceof Animatable) {
+            ((Animatable) holder.animation).stop();
+        }
+        holder.animation = null;
+    }
+
+    /**
+     * Track the bitmap a page shows, so it isn't reused by the BitmapPool meanwhile.
+     * A tiled drawable keeps showing the bitmap it was created from.
+     */
+    private void showBitmap(@NonNull ImageViewerViewHolder holder, Bitmap bitmap) {
+        if (holder.shownBitmap == bitmap) {
+            return;
+        }
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        bitmapPool.markInUse(bitmap);
+        bitmapPool.markUnused(holder.shownBitmap);
+        holder.shownBitmap = bitmap;
+        if (bitmap != null) {
+            shownHolders.add(holder);
         } else {
-            holder.photoView.setImageBitmap(bitmap);
+            shownHolders.remove(holder);
         }
     }
+
+    /**
+     * Show a drawable in the holder's PhotoView
+     *
+     * @param keepZoom true if the drawable replaces a view of the same image, e.g. a
+     *                 sharper bitmap, so the zoom must not move
+     */
+    private void showDrawable(@NonNull ImageViewerViewHolder holder, Drawable drawable, boolean keepZoom) {
+        Matrix zoom = new Matrix();
+        if (keepZoom) {
+            holder.photoView.getSuppMatrix(zoom);
+        }
+        holder.photoView.setImageDrawable(drawable);
+        if (keepZoom) {
+            holder.photoView.setSuppMatrix(zoom);
+        }
+    }
+
+    /**
+     * Show the page in a PhotoView with its current user rotation. Only the display
+     * transform changes, no pixels are copied.
+     */
+    public void applyRotation(PhotoView photoView, int position) {
+        Drawable drawable = photoView.getDrawable();
+        if (drawable instanceof OrientedDrawable) {
+            photoView.setImageDrawable(((OrientedDrawable) drawable).withUserRotation(getUserRotation(position)));
+        } else {
+            notifyItemChanged(position);
+        }
+    }
+
+    private int getOrientation(int position) {
+        Integer orientation = orientations.get(position);
+        return orientation != null ? orientation : ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    private int getUserRotation(int position) {
+        return rotationManager.getRotation(InPlaceArchive.getArchiveName(archiveFile), imageEntries.get(position).getFileName());
+    }
     
     /**
      * Setup PhotoView configuration
@@ -155,6 +679,8 @@ public class ImageViewerAdapter extends RecyclerView.Adapter<ImageViewerAdapter.
         
         // Enable zoom and double-tap
         holder.photoView.setZoomable(true);
+        holder.photoView.setOnScaleChangeListener((scaleFactor, focusX, focusY) -> onScaleChanged(holder));
+        holder.photoView.setOnMatrixChangeListener(rect -> updateTileScale(holder));
         
         // Add double-tap listener to toggle between fit and actual size
         holder.photoView.setOnDoubleTapListener(new android.view.GestureDetector.OnDoubleTapListener() {
@@ -193,95 +719,169 @@ public class ImageViewerAdapter extends RecyclerView.Adapter<ImageViewerAdapter.
     }
 
     /**
-     * Rotate bitmap by the specified angle
-     */
-    private Bitmap rotateBitmap(Bitmap source, float angle) {
-        Matrix matrix = new Matrix();
-        matrix.postRotate(angle);
-        return Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(), matrix, true);
-    }
-
-    /**
-     * Save rotation state for a specific position
+     * Save rotation state for a specific position, it is kept per archive entry
      */
     public void saveRotation(int position, float rotation) {
-        rotationMap.put(position, rotation);
-        // Clear cached rotated bitmap to force recreation
-        Bitmap oldRotated = rotatedBitmaps.remove(position);
-        if (oldRotated != null && !isBitmapRecycled(oldRotated)) {
-            // Check if this bitmap is one of the loaded images (don't recycle those)
-            Bitmap loadedBitmap = loadedBitmaps.get(position);
-            if (loadedBitmap != null && oldRotated != loadedBitmap) {
-                oldRotated.recycle();
-            }
-        }
+        rotationManager.saveRotation(InPlaceArchive.getArchiveName(archiveFile), imageEntries.get(position).getFileName(), Math.round(rotation));
     }
     
     /**
-     * Safely check if a bitmap is recycled
+     * @return The cache of full-size bitmaps, e.g. to read its hit, miss and eviction counters
      */
-    private boolean isBitmapRecycled(Bitmap bitmap) {
-        if (bitmap == null) {
-            return true;
-        }
-        try {
-            return bitmap.isRecycled();
-        } catch (IllegalStateException e) {
-            return true;
-        }
+    public BitmapCache getBitmapCache() {
+        return bitmapCache;
     }
 
     /**
      * Get rotation state for a specific position
      */
     public float getRotation(int position) {
-        Float rotation = rotationMap.get(position);
-        return rotation != null ? rotation : 0f;
+        return getUserRotation(position);
     }
     
     /**
-     * Clean up cached rotated bitmaps to prevent memory leaks
+     * Clean up cached bitmaps to prevent memory leaks
      * Call this when the adapter is no longer needed
+     *
+     * @param keepPages Leave the decoded pages in the cache for the next viewer of the archive
      */
-    public void cleanup() {
-        // Shutdown executor service and wait for tasks to complete
-        executorService.shutdown();
-        try {
-            if (!executorService.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            executorService.shutdownNow();
-            Thread.currentThread().interrupt();
+    public void cleanup(boolean keepPages) {
+        // Drop pending decodes, the ones already running finish into the cleared cache
+        released = true;
+        for (PageRequest request : requests.values()) {
+            request.cancel();
         }
-        
-        // Clean up rotated bitmaps
-        for (Map.Entry<Integer, Bitmap> entry : rotatedBitmaps.entrySet()) {
-            Bitmap bitmap = entry.getValue();
-            int position = entry.getKey();
-            // Only recycle if it's not null, not recycled, and not one of the loaded images
-            if (bitmap != null && !isBitmapRecycled(bitmap)) {
-                Bitmap loadedBitmap = loadedBitmaps.get(position);
-                if (loadedBitmap == null || bitmap != loadedBitmap) {
-                    bitmap.recycle();
+        requests.clear();
+        executor.shutdown();
+        for (TiledImageDrawable tiledImage : tiledImages) {
+            tiledImage.close();
+        }
+        tiledImages.clear();
+        tileExecutor.shutdown();
+        animationExecutor.shutdown();
+        mainHandler.removeCallbacksAndMessages(null);
+
+        // Pages stop showing their bitmaps, so the cleared ones can go to the pool
+        for (ImageViewerViewHolder holder : new ArrayList<>(shownHolders)) {
+            releaseAnimation(holder);
+            holder.photoView.setImageDrawable(null);
+            showBitmap(holder, null);
+        }
+        if (!keepPages) {
+            bitmapCache.clear();
+        }
+        tileCache.evictAll();
+    }
+
+    /**
+     * Decode of one page, for the holder showing it and/or the prefetcher
+     */
+    private class PageRequest extends DecodeExecutor.Task {
+        private final int position;
+        // Subsampling to decode at, 0 to fit the screen
+        private final int sampleSize;
+        // Holder waiting for the page, null while only prefetched
+        private volatile ImageViewerViewHolder holder;
+        private volatile boolean prefetched;
+
+        PageRequest(int position, int sampleSize) {
+            this.position = position;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        protected int getPriority() {
+            return priorityOf(position);
+        }
+
+        @Override
+        public void run() {
+            // Any cached bitmap fits the screen, zoom refinements always decode
+            Bitmap bitmap = sampleSize == 0 ? bitmapCache.get(position) : null;
+            Exception error = null;
+            if (bitmap == null) {
+                try {
+                    bitmap = decodeBitmap(position, sampleSize);
+                    if (bitmap != null) {
+                        bitmapCache.put(position, bitmap);
+                    }
+                } catch (Exception e) {
+                    error = e;
                 }
             }
+            requests.remove(position, this);
+
+            Bitmap loadedBitmap = bitmap;
+            Exception loadError = error;
+            mainHandler.post(() -> deliver(this, loadedBitmap, loadError));
         }
-        rotatedBitmaps.clear();
-        
-        // Clean up loaded bitmaps
-        for (Bitmap bitmap : loadedBitmaps.values()) {
-            if (bitmap != null && !isBitmapRecycled(bitmap)) {
-                bitmap.recycle();
+    }
+
+    /**
+     * Decode of an animated WebP page with the platform decoder, which streams the
+     * frames itself. It needs random access, so the entry is extracted to a temporary file.
+     */
+    @RequiresApi(Build.VERSION_CODES.P)
+    private class AnimatedWebpRequest extends DecodeExecutor.Task {
+        private final ImageViewerViewHolder holder;
+        private final int position;
+        private final ArchiveIndex.Entry indexEntry;
+
+        AnimatedWebpRequest(ImageViewerViewHolder holder, int position, ArchiveIndex.Entry indexEntry) {
+            this.holder = holder;
+            this.position = position;
+            this.indexEntry = indexEntry;
+        }
+
+        @Override
+        protected int getPriority() {
+            return 0;
+        }
+
+        @Override
+        public void run() {
+            Drawable drawable;
+            File animationDir = new File(context.getCacheDir(), "animations");
+            try {
+                animationDir.mkdirs();
+                File tempFile = File.createTempFile("animation", ".webp", animationDir);
+                try {
+                    session.extractEntry(indexEntry, password, tempFile);
+                    // The decoder keeps its own descriptor, so the file can go right away
+                    drawable = ImageDecoder.decodeDrawable(ImageDecoder.createSource(tempFile));
+                } finally {
+                    tempFile.delete();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Keep showing the still first frame
+                return;
             }
+            if (!(drawable instanceof AnimatedImageDrawable)) {
+                return;
+            }
+            mainHandler.post(() -> {
+                if (released || holder.getBindingAdapterPosition() != position
+                        || holder.animation != null || holder.tiledImage != null) {
+                    return;
+                }
+                holder.animation = drawable;
+                showDrawable(holder, new OrientedDrawable(drawable, getOrientation(position),
+                        getUserRotation(position)), false);
+                updateAnimations();
+            });
         }
-        loadedBitmaps.clear();
-        
-        rotationMap.clear();
     }
 
     static class ImageViewerViewHolder extends RecyclerView.ViewHolder {
         PhotoView photoView;
+        // Pending decode of the page this holder is bound to
+        PageRequest request;
+        // Tiled rendering of a very large page, null for plain bitmaps
+        TiledImageDrawable tiledImage;
+        // Frames of an animated page, null for still images
+        Drawable animation;
+        // Bitmap the page shows, marked as in use in the BitmapPool
+        Bitmap shownBitmap;
 
         public ImageViewerViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -0,0 +1,198 @@
+package com.bitifyware.zipviewer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An archive read straight from a content URI, without copying it into private storage
+ * The URI is opened as a seekable file descriptor, and the archive is named by a
+ * file in the cache that is never created. Sessions recognize that file and read the
+ * archive through duplicates of the descriptor with positional reads, which works
+ * for files in another app's private storage that can't be opened by path. The index
+ * is built from the central directory only and is persisted under the cache file's
+ * name, so showing the first images costs about as much as reading the central directory.
+ * The descriptor stays open until close() is called for the file. Once the archive is
+ * also imported, the copy is recorded, so screens restored after the process died
+ * show the copy, and passwords and rotations are kept under the copy's name.
+ */
+public class InPlaceArchive {
+
+    private static final String ARCHIVE_DIR = "in_place";
+    private static final String COPIES_PREFS_NAME = "in_place_copies";
+
+    private static final Map<String, InPlaceArchive> archives = new HashMap<>();
+    // Imported copies of the archives opened in this process, by path
+    private static final Map<String, File> copies = new HashMap<>();
+
+    private final File archiveFile;
+    private final ParcelFileDescriptor descriptor;
+    private final long length;
+    private final long modified;
+
+    private InPlaceArchive(File archiveFile, ParcelFileDescriptor descriptor, long length, long modified) {
+        this.archiveFile = archiveFile;
+        this.descriptor = descriptor;
+        this.length = length;
+        this.modified = modified;
+    }
+
+    /**
+     * Open the archive of a URI in place. Blocks, call on a worker thread.
+     *
+     * @param fileName Name of the archive, used for the file naming it
+     * @return The file naming the archive, or null if the URI isn't a seekable file
+     */
+    public static File open(Context context, Uri uri, String fileName) throws IOException {
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (RuntimeException e) {
+            // Provider only serves streams
+            return null;
+        }
+        if (descriptor == null) {
+            return null;
+        }
+        long length = descriptor.getStatSize();
+        if (length < 0) {
+            // Pipe or socket, can't be read at random offsets
+            descriptor.close();
+            return null;
+        }
+        long modified;
+        try {
+            modified = Os.fstat(descriptor.getFileDescriptor()).st_mtime * 1000;
+        } catch (ErrnoException e) {
+            descriptor.close();
+            throw new IOException("Cannot open " + fileName + " in place", e);
+        }
+
+        File archiveDir = new File(context.getCacheDir(), ARCHIVE_DIR);
+        File archivesDir = new File(context.getFilesDir(), "archives");
+        synchronized (InPlaceArchive.class) {
+            File archiveFile = new File(archiveDir, fileName);
+            for (int counter = 1; archives.containsKey(archiveFile.getAbsolutePath())
+                    || new File(archivesDir, archiveFile.getName()).exists(); counter++) {
+                // Another archive of that name is open or in the list, neither the index
+                // nor the password and rotations must be shared
+                archiveFile = new File(archiveDir, counter + "_" + fileName);
+            }
+            archives.put(archiveFile.getAbsolutePath(), new InPlaceArchive(archiveFile, descriptor, length, modified));
+            // The name is reused, a copy recorded for it belongs to another archive
+            copies.remove(archiveFile.getAbsolutePath());
+            getCopiesPrefs(context).edit().remove(archiveFile.getAbsolutePath()).apply();
+            return archiveFile;
+        }
+    }
+
+    /**
+     * Record the imported copy of an archive opened in place
+     */
+    public static void setImportedCopy(Context context, File archiveFile, File copy) {
+        synchronized (InPlaceArchive.class) {
+            copies.put(archiveFile.getAbsolutePath(), copy);
+        }
+        getCopiesPrefs(context).edit().putString(archiveFile.getAbsolutePath(), copy.getAbsolutePath()).apply();
+    }
+
+    /**
+     * Get the archive a restored screen should show. An archive that was opened in place
+     * is gone after the process died, its imported copy is shown instead.
+     *
+     * @return The imported copy if the archive isn't open in place anymore, otherwise the file itself
+     */
+    public static File restore(Context context, File archiveFile) {
+        if (isOpen(archiveFile)) {
+            return archiveFile;
+        }
+        String copyPath = getCopiesPrefs(context).getString(archiveFile.getAbsolutePath(), null);
+        if (copyPath == null || !new File(copyPath).exists()) {
+            return archiveFile;
+        }
+        return new File(copyPath);
+    }
+
+    /**
+     * @return The name passwords and rotations of an archive are kept under: the name of
+     *         its imported copy once that is known, otherwise the file's own name
+     */
+    public static synchronized String getArchiveName(File archiveFile) {
+        File copy = copies.get(archiveFile.getAbsolutePath());
+        return copy != null ? copy.getName() : archiveFile.getName();
+    }
+
+    /**
+     * Open a channel of its own over an archive opened in place. Read it with
+     * positional reads only, the position is shared with the other channels.
+     *
+     * @return The channel, or null if the archive isn't open in place
+     */
+    public static FileChannel openChannel(File archiveFile) throws IOException {
+        InPlaceArchive archive = get(archiveFile);
+        if (archive == null) {
+            return null;
+        }
+        return new ParcelFileDescriptor.AutoCloseInputStream(archive.descriptor.dup()).getChannel();
+    }
+
+    /**
+     * @return true if the file names an archive opened in place
+     */
+    public static boolean isOpen(File archiveFile) {
+        return get(archiveFile) != null;
+    }
+
+    /**
+     * @return The length of an archive, whether it is opened in place or a plain file
+     */
+    public static long length(File archiveFile) {
+        InPlaceArchive archive = get(archiveFile);
+        return archive != null ? archive.length : archiveFile.length();
+    }
+
+    /**
+     * @return The modification time of an archive, whether it is opened in place or a plain file
+     */
+    public static long lastModified(File archiveFile) {
+        InPlaceArchive archive = get(archiveFile);
+        return archive != null ? archive.modified : archiveFile.lastModified();
+    }
+
+    /**
+     * Close the descriptor of an archive opened in place, does nothing for other files.
+     * Sessions that already hold channels of the archive keep working with them.
+     */
+    public static void close(File archiveFile) {
+        InPlaceArchive archive;
+        synchronized (InPlaceArchive.class) {
+            archive = archives.remove(archiveFile.getAbsolutePath());
+        }
+        if (archive == null) {
+            return;
+        }
+        ArchiveSession.discard(archive.archiveFile);
+        try {
+            archive.descriptor.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    private static SharedPreferences getCopiesPrefs(Context context) {
+        return context.getSharedPreferences(COPIES_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static synchronized InPlaceArchive get(File archiveFile) {
+        return archives.get(archiveFile.getAbsolutePath());
+    }
+}
@@ -5,6 +5,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.EditText;
@@ -19,14 +20,14 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-
-import net.lingala.zip4j.ZipFile;
+import com.google.android.material.progressindicator.LinearProgressIndicator;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Main activity for ZipViewer - Private Archive Viewer
@@ -38,14 +39,31 @@ import java.util.List;
  */
 public class MainActivity extends AppCompatActivity implements ArchiveAdapter.OnArchiveClickListener {
 
+    // Shared archives from this size on are shown straight from the URI while they are imported
+    private static final long IN_PLACE_MIN_SIZE = 64L * 1024 * 1024;
+
     private RecyclerView recyclerView;
     private FloatingActionButton fabAdd;
     private EditText searchBar;
+    private View importProgress;
+    private TextView importStatus;
+    private LinearProgressIndicator importProgressBar;
     private ArchiveAdapter archiveAdapter;
     private List<ArchiveItem> archives;
     private List<ArchiveItem> filteredArchives;
     private PasswordManager passwordManager;
+    private RotationManager rotationManager;
     private ActivityResultLauncher<String[]> filePickerLauncher;
+    private ArchiveCatalog archiveCatalog;
+    private ArchiveCatalog.Listener catalogListener;
+    // Catalog queries run one at a time, off the main thread
+    private final ExecutorService catalogExecutor = Executors.newSingleThreadExecutor();
+    // Catalog version of the shown list, -1 before the first query
+    private int shownCatalogVersion = -1;
+    private int loadGeneration;
+    private ArchiveImporter archiveImporter;
+    // Imports running on worker threads, the progress bar shows the latest one
+    private int runningImports;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,10 +83,25 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
         recyclerView = findViewById(R.id.recyclerView);
         fabAdd = findViewById(R.id.fabAdd);
         searchBar = findViewById(R.id.searchBar);
+        importProgress = findViewById(R.id.importProgress);
+        importStatus = findViewById(R.id.importStatus);
+        importProgressBar = findViewById(R.id.importProgressBar);
 
         archives = new ArrayList<>();
         filteredArchives = new ArrayList<>();
         passwordManager = new PasswordManager(this);
+        rotationManager = new RotationManager(this);
+        archiveCatalog = ArchiveCatalog.getInstance(this);
+        archiveImporter = new ArchiveImporter(this, archiveCatalog);
+        // Imports, replacements and deletes show up through the catalog's directory observer
+        catalogListener = () -> runOnUiThread(this::loadArchives);
+        archiveCatalog.setListener(catalogListener);
+        new Thread(() -> {
+            archiveImporter.deleteStaleImports();
+            // Reads whole archives, so it runs here and not in an import or catalog query
+            archiveCatalog.syncOnce();
+            archiveImporter.hashUncatalogedArchives();
+        }).start();
 
         archiveAdapter = new ArchiveAdapter(this);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
@@ -113,7 +146,17 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
     @Override
     protected void onResume() {
         super.onResume();
-        loadArchives();
+        // Only query again if the catalog changed while another screen was shown
+        if (archiveCatalog.getVersion() != shownCatalogVersion) {
+            loadArchives();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        archiveCatalog.removeListener(catalogListener);
+        catalogExecutor.shutdown();
     }
 
     /**
@@ -137,30 +180,28 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
     private void openArchiveFile(Uri uri, boolean fromSharedIntent) {
         new Thread(() -> {
             try {
-                // Get filename first to check for conflicts
+                // Archives are recognized by content, so a name conflict is resolved
+                // by the importer instead of asking the user
                 String fileName = getFileNameFromUri(uri);
-                File internalDir = new File(getFilesDir(), "archives");
-                if (!internalDir.exists()) {
-                    internalDir.mkdirs();
-                }
-                
-                File targetFile = new File(internalDir, fileName);
-                
-                // Check if file already exists
-                if (targetFile.exists()) {
-                    // Show confirmation dialog on UI thread
-                    runOnUiThread(() -> {
-                        showFileExistsDialog(uri, fileName, fromSharedIntent);
-                    });
-                } else {
-                    // File doesn't exist, proceed with copy
-                    File internalFile = copyToInternalStorage(uri, fileName);
-                    
-                    // Check if archive is encrypted and prompt for password
-                    runOnUiThread(() -> {
+                File shownInPlace = fromSharedIntent ? showInPlace(uri, fileName) : null;
+                ArchiveImporter.Result result = copyToInternalStorage(uri, fileName);
+                File internalFile = result.getArchiveFile();
+
+                runOnUiThread(() -> {
+                    if (shownInPlace != null) {
+                        // Already shown, the copy only adds it to the list
+                        adoptImportedCopy(shownInPlace, internalFile);
+                        if (!result.isDuplicate()) {
+                            showArchiveAddedMessage(internalFile.getName());
+                        }
+                    } else if (result.isDuplicate()) {
+                        // Same content as an archive in the list, open that one with its caches
+                        showArchiveExistsMessage(internalFile.getName(), fromSharedIntent);
+                    } else {
+                        // Check if archive is encrypted and prompt for password
                         checkAndPromptForPassword(internalFile, fromSharedIntent);
-                    });
-                }
+                    }
+                });
                 
             } catch (Exception e) {
                 runOnUiThread(() -> {
@@ -170,6 +211,54 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
         }).start();
     }
 
+    /**
+     * Show a large archive straight from its URI, so it can be shown before the copy
+     * into private storage is done. Asks for the password if it is encrypted.
+     * The gallery's ArchiveRegistry content closes the archive once it is no longer shown.
+     * Blocks, call on a worker thread.
+     *
+     * @return The file naming the archive if the gallery is being opened, null if the
+     *         archive is small, the URI isn't seekable or it couldn't be read, and the
+     *         private copy has to be shown
+     */
+    private File showInPlace(Uri uri, String fileName) {
+        File archiveFile;
+        try {
+            archiveFile = InPlaceArchive.open(this, uri, fileName);
+        } catch (Exception e) {
+            return null;
+        }
+        if (archiveFile == null) {
+            return null;
+        }
+        boolean isEncrypted;
+        try {
+            if (InPlaceArchive.length(archiveFile) < IN_PLACE_MIN_SIZE) {
+                // Copied quickly anyway, show the private copy
+                InPlaceArchive.close(archiveFile);
+                return null;
+            }
+            // Only reads the central directory, which is all the gallery needs to start
+            ArchiveSession session = ArchiveSession.acquire(archiveFile);
+            isEncrypted = session.getIndex().isEncrypted();
+            session.release();
+        } catch (Exception e) {
+            InPlaceArchive.close(archiveFile);
+            return null;
+        }
+        runOnUiThread(() -> {
+            // Nothing is saved under a fresh in-place name, but an archive of the same
+            // name in the list may well be this one, its password is worth a try
+            String password = passwordManager.getPassword(fileName);
+            if (isEncrypted && password == null) {
+                promptForPasswordAndOpen(archiveFile);
+            } else {
+                openGallery(archiveFile, password);
+            }
+        });
+        return archiveFile;
+    }
+
     /**
      * Check if archive is encrypted and prompt for password
      * @param archiveFile The archive file to check
@@ -178,13 +267,15 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
     private void checkAndPromptForPassword(File archiveFile, boolean fromSharedIntent) {
         new Thread(() -> {
             try {
-                ZipFile zipFile = new ZipFile(archiveFile);
-                boolean isEncrypted = zipFile.isEncrypted();
+                // Opening the session here also saves the gallery from parsing the archive
+                ArchiveSession session = ArchiveSession.acquire(archiveFile);
+                boolean isEncrypted = session.getIndex().isEncrypted();
+                session.release();
                 
                 runOnUiThread(() -> {
                     if (isEncrypted && fromSharedIntent) {
                         // For shared files, prompt for password and then open
-                        promptForPasswordAndOpen(archiveFile.getName(), archiveFile);
+                        promptForPasswordAndOpen(archiveFile);
                     } else if (isEncrypted) {
                         // For file picker, just prompt to save password (don't open)
                         promptForPassword(archiveFile.getName(), null);
@@ -216,10 +307,49 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
         loadArchives();
     }
 
+    /**
+     * Hand an archive shown in place over to its imported copy: restored screens show
+     * the copy, and the password and rotations saved so far move to the copy's name.
+     * The copy keeps a password of its own if it was in the list already.
+     */
+    private void adoptImportedCopy(File inPlaceFile, File copy) {
+        InPlaceArchive.setImportedCopy(this, inPlaceFile, copy);
+        String inPlaceName = inPlaceFile.getName();
+        if (inPlaceName.equals(copy.getName())) {
+            return;
+        }
+        String password = passwordManager.getPassword(inPlaceName);
+        if (password != null) {
+            if (!passwordManager.hasPassword(copy.getName())) {
+                passwordManager.savePassword(copy.getName(), password);
+            }
+            passwordManager.removePassword(inPlaceName);
+        }
+        rotationManager.moveRotations(inPlaceName, copy.getName());
+    }
+
+    /**
+     * Tell the user an imported archive was already in the list, and open it if it
+     * was shared by another app
+     */
+    private void showArchiveExistsMessage(String fileName, boolean fromSharedIntent) {
+        Toast.makeText(this, getString(R.string.archive_exists_message, fileName), Toast.LENGTH_SHORT).show();
+        if (fromSharedIntent && !catalogExecutor.isShutdown()) {
+            catalogExecutor.execute(() -> {
+                ArchiveItem item = archiveCatalog.getArchive(fileName);
+                if (item != null) {
+                    item.setPassword(passwordManager.getPassword(fileName));
+                    // Asks for the password if the saved one doesn't work
+                    runOnUiThread(() -> onArchiveClick(item));
+                }
+            });
+        }
+    }
+
     /**
      * Prompt user to enter password for encrypted archive and open it after
      */
-    private void promptForPasswordAndOpen(String fileName, File archiveFile) {
+    private void promptForPasswordAndOpen(File archiveFile) {
         View dialogView = LayoutInflater.from(this).inflate(R.layout.dialog_password, null);
         EditText passwordInput = dialogView.findViewById(R.id.passwordInput);
         
@@ -235,13 +365,16 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
         
         dialogView.findViewById(R.id.btnCancel).setOnClickListener(v -> {
             dialog.dismiss();
+            // Not shown after all
+            InPlaceArchive.close(archiveFile);
             loadArchives();
         });
         
         dialogView.findViewById(R.id.btnUnlock).setOnClickListener(v -> {
             String password = passwordInput.getText().toString();
             if (!password.isEmpty()) {
-                passwordManager.savePassword(fileName, password);
+                // Under the name of the imported copy if the import is done already
+                passwordManager.savePassword(InPlaceArchive.getArchiveName(archiveFile), password);
                 Toast.makeText(this, "Password saved", Toast.LENGTH_SHORT).show();
                 dialog.dismiss();
                 loadArchives();
@@ -310,30 +443,42 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
      * Copy file to internal storage to ensure privacy
      * Files in internal storage cannot be accessed by other apps
      */
-    private File copyToInternalStorage(Uri uri, String fileName) throws Exception {
-        File internalDir = new File(getFilesDir(), "archives");
-        if (!internalDir.exists()) {
-            internalDir.mkdirs();
+    private ArchiveImporter.Result copyToInternalStorage(Uri uri, String fileName) throws Exception {
+        runOnUiThread(() -> {
+            runningImports++;
+            showImportProgress(fileName, 0, -1, 0);
+        });
+        try {
+            return archiveImporter.importArchive(uri, fileName, (copiedBytes, totalBytes, bytesPerSecond) ->
+                    runOnUiThread(() -> showImportProgress(fileName, copiedBytes, totalBytes, bytesPerSecond)));
+        } finally {
+            runOnUiThread(() -> {
+                if (--runningImports == 0) {
+                    importProgress.setVisibility(View.GONE);
+                }
+            });
         }
-        
-        File outputFile = new File(internalDir, fileName);
-        
-        // Use try-with-resources to ensure streams are properly closed
-        try (InputStream inputStream = getContentResolver().openInputStream(uri);
-             FileOutputStream outputStream = new FileOutputStream(outputFile)) {
-            
-            if (inputStream == null) {
-                throw new Exception("Cannot open input stream");
-            }
-            
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
+    }
+
+    /**
+     * Show how far the copy of an archive into private storage got
+     */
+    private void showImportProgress(String fileName, long copiedBytes, long totalBytes, long bytesPerSecond) {
+        if (runningImports == 0) {
+            return;
+        }
+        importProgress.setVisibility(View.VISIBLE);
+        String copied = Formatter.formatShortFileSize(this, copiedBytes);
+        String speed = Formatter.formatShortFileSize(this, bytesPerSecond);
+        if (totalBytes > 0) {
+            importStatus.setText(getString(R.string.import_progress, fileName, copied,
+                    Formatter.formatShortFileSize(this, totalBytes), speed));
+            importProgressBar.setIndeterminate(false);
+            importProgressBar.setProgressCompat((int) (copiedBytes * 100 / totalBytes), true);
+        } else {
+            importStatus.setText(getString(R.string.import_progress_unknown_size, fileName, copied, speed));
+            importProgressBar.setIndeterminate(true);
         }
-        
-        return outputFile;
     }
     
     /**
@@ -350,98 +495,33 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
     }
     
     /**
-     * Show dialog asking user if they want to override existing file
-     */
-    private void showFileExistsDialog(Uri uri, String fileName, boolean fromSharedIntent) {
-        new AlertDialog.Builder(this)
-                .setTitle(R.string.file_exists_title)
-                .setMessage(getString(R.string.file_exists_message, fileName))
-                .setPositiveButton(R.string.override, (dialog, which) -> {
-                    // User chose to override, proceed with copy
-                    new Thread(() -> {
-                        try {
-                            File internalFile = copyToInternalStorage(uri, fileName);
-                            runOnUiThread(() -> {
-                                checkAndPromptForPassword(internalFile, fromSharedIntent);
-                            });
-                        } catch (Exception e) {
-                            runOnUiThread(() -> {
-                                Toast.makeText(this, "Error opening archive: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                            });
-                        }
-                    }).start();
-                })
-                .setNegativeButton(R.string.keep_both, (dialog, which) -> {
-                    // User chose to keep both files, generate unique filename
-                    new Thread(() -> {
-                        try {
-                            String uniqueFileName = generateUniqueFileName(fileName);
-                            File internalFile = copyToInternalStorage(uri, uniqueFileName);
-                            runOnUiThread(() -> {
-                                checkAndPromptForPassword(internalFile, fromSharedIntent);
-                            });
-                        } catch (Exception e) {
-                            runOnUiThread(() -> {
-                                Toast.makeText(this, "Error opening archive: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                            });
-                        }
-                    }).start();
-                })
-                .setCancelable(true)
-                .show();
-    }
-    
-    /**
-     * Generate a unique filename by appending a suffix
-     */
-    private String generateUniqueFileName(String fileName) {
-        File internalDir = new File(getFilesDir(), "archives");
-        
-        // Split filename into name and extension
-        String nameWithoutExt = fileName;
-        String extension = "";
-        int lastDotIndex = fileName.lastIndexOf('.');
-        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
-            nameWithoutExt = fileName.substring(0, lastDotIndex);
-            extension = fileName.substring(lastDotIndex);
-        }
-        
-        // Try to find a unique name by appending numbers
-        int counter = 1;
-        String newFileName = fileName;
-        while (new File(internalDir, newFileName).exists()) {
-            newFileName = nameWithoutExt + " (" + counter + ")" + extension;
-            counter++;
-        }
-        
-        return newFileName;
-    }
-
-    /**
-     * Load all archives from internal storage
+     * Load all archives from the catalog on a worker thread, then show them
      */
     private void loadArchives() {
-        archives.clear();
-        
-        File archivesDir = new File(getFilesDir(), "archives");
-        if (archivesDir.exists()) {
-            File[] files = archivesDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        ArchiveItem item = new ArchiveItem(file);
-                        // Load password from storage
-                        String password = passwordManager.getPassword(file.getName());
-                        if (password != null) {
-                            item.setPassword(password);
-                        }
-                        archives.add(item);
-                    }
-                }
-            }
+        if (catalogExecutor.isShutdown()) {
+            // Late callback of an import or the observer
+            return;
         }
-        
-        filterArchives(searchBar.getText().toString());
+        int generation = ++loadGeneration;
+        catalogExecutor.execute(() -> {
+            archiveCatalog.syncOnce();
+            int version = archiveCatalog.getVersion();
+            List<ArchiveItem> items = archiveCatalog.queryArchives();
+            // Load passwords from storage in one pass
+            Map<String, String> passwords = passwordManager.getPasswords();
+            for (ArchiveItem item : items) {
+                item.setPassword(passwords.get(item.getName()));
+            }
+            runOnUiThread(() -> {
+                if (generation != loadGeneration || isDestroyed()) {
+                    return;
+                }
+                shownCatalogVersion = version;
+                archives.clear();
+                archives.addAll(items);
+                filterArchives(searchBar.getText().toString());
+            });
+        });
     }
 
     /**
@@ -471,13 +551,10 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
         // Check if password is needed and validate it
         new Thread(() -> {
             try {
-                ZipFile zipFile = new ZipFile(item.getFile());
-                if (zipFile.isEncrypted() && item.hasPassword()) {
-                    zipFile.setPassword(item.getPassword().toCharArray());
-                }
-                
-                // Try to access the archive
-                zipFile.getFileHeaders();
+                // Try to access the archive, this also opens the session for the gallery
+                ArchiveSession.acquire(item.getFile()).release();
+                archiveCatalog.incrementViewCount(item.getName());
+                archiveCatalog.markIndexBuilt(item.getName());
                 
                 runOnUiThread(() -> {
                     Intent intent = new Intent(this, GalleryActivity.class);
@@ -520,8 +597,11 @@ public class MainActivity extends AppCompatActivity implements ArchiveAdapter.On
         
         dialogView.findViewById(R.id.btnDelete).setOnClickListener(v -> {
             if (item.getFile().delete()) {
-                // Also remove password
+                // Also remove password, rotations and index
                 passwordManager.removePassword(item.getName());
+                rotationManager.removeRotations(item.getName());
+                ArchiveSession.discard(item.getFile());
+                ArchiveIndex.delete(item.getFile());
                 Toast.makeText(this, "Archive deleted", Toast.LENGTH_SHORT).show();
                 loadArchives();
             } else {
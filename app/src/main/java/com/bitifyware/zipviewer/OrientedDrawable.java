@@ -0,0 +1,150 @@
+package com.bitifyware.zipviewer;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
+
+/**
+ * Shows a drawable rotated and/or mirrored without copying any pixels
+ * The EXIF orientation of the image and the rotation chosen by the user are
+ * applied while drawing. The intrinsic size is the one of the oriented image,
+ * so a PhotoView fits and zooms it like a bitmap in display orientation.
+ */
+public class OrientedDrawable extends Drawable implements Drawable.Callback {
+
+    private final Drawable drawable;
+    private final int exifOrientation;
+    private final int userRotation;
+    private final boolean mirrored;
+    private final int rotation;
+
+    /**
+     * @param drawable The image as stored in the file
+     * @param exifOrientation One of the ExifInterface.ORIENTATION_* values of the image
+     * @param userRotation Additional clockwise rotation in degrees, a multiple of 90
+     */
+    public OrientedDrawable(Drawable drawable, int exifOrientation, int userRotation) {
+        this.drawable = drawable;
+        this.exifOrientation = exifOrientation;
+        this.userRotation = userRotation;
+
+        // Every EXIF orientation is a horizontal mirror (or not) followed by a rotation
+        int exifRotation;
+        switch (exifOrientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                mirrored = true;
+                exifRotation = 0;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                mirrored = false;
+                exifRotation = 180;
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                mirrored = true;
+                exifRotation = 180;
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                mirrored = true;
+                exifRotation = 270;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                mirrored = false;
+                exifRotation = 90;
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                mirrored = true;
+                exifRotation = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                mirrored = false;
+                exifRotation = 270;
+                break;
+            default:
+                mirrored = false;
+                exifRotation = 0;
+                break;
+        }
+        rotation = (((exifRotation + userRotation) % 360) + 360) % 360;
+        drawable.setCallback(this);
+    }
+
+    /**
+     * @return A drawable showing the same image with another user rotation
+     */
+    public OrientedDrawable withUserRotation(int userRotation) {
+        return new OrientedDrawable(drawable, exifOrientation, userRotation);
+    }
+
+    /**
+     * @return The wrapped drawable, in file orientation
+     */
+    public Drawable getDrawable() {
+        return drawable;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (bounds.isEmpty() || width <= 0 || height <= 0) {
+            return;
+        }
+        int save = canvas.save();
+        canvas.translate(bounds.exactCenterX(), bounds.exactCenterY());
+        canvas.rotate(rotation);
+        if (mirrored) {
+            canvas.scale(-1, 1);
+        }
+        boolean swapped = rotation % 180 != 0;
+        float scale = swapped ? (float) bounds.width() / height : (float) bounds.width() / width;
+        canvas.scale(scale, scale);
+        canvas.translate(-width / 2f, -height / 2f);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        canvas.restoreToCount(save);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return rotation % 180 != 0 ? drawable.getIntrinsicHeight() : drawable.getIntrinsicWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return rotation % 180 != 0 ? drawable.getIntrinsicWidth() : drawable.getIntrinsicHeight();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        drawable.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        drawable.setColorFilter(colorFilter);
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    @Override
+    public void invalidateDrawable(Drawable who) {
+        invalidateSelf();
+    }
+
+    @Override
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+        scheduleSelf(what, when);
+    }
+
+    @Override
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+        unscheduleSelf(what);
+    }
+}
@@ -3,6 +3,9 @@ package com.bitifyware.zipviewer;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Manager for storing and retrieving archive passwords
  */
@@ -28,6 +31,21 @@ public class PasswordManager {
         return prefs.getString(fileName, null);
     }
 
+    /**
+     * Get the passwords of all archive files at once, cheaper than one lookup per archive
+     *
+     * @return Passwords by archive file name
+     */
+    public Map<String, String> getPasswords() {
+        Map<String, String> passwords = new HashMap<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                passwords.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return passwords;
+    }
+
     /**
      * Remove password for an archive file
      */
@@ -0,0 +1,83 @@
+package com.bitifyware.zipviewer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Manager for storing the rotation the user applied to images, per archive entry
+ */
+public class RotationManager {
+    private static final String PREFS_NAME = "image_rotations";
+    private static final String SEPARATOR = "/";
+    private SharedPreferences prefs;
+
+    public RotationManager(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Save the rotation of an image, a rotation of 0 removes it
+     *
+     * @param degrees Clockwise rotation, a multiple of 90
+     */
+    public void saveRotation(String archiveName, String entryName, int degrees) {
+        int normalized = ((degrees % 360) + 360) % 360;
+        String key = archiveName + SEPARATOR + entryName;
+        if (normalized == 0) {
+            prefs.edit().remove(key).apply();
+        } else {
+            prefs.edit().putInt(key, normalized).apply();
+        }
+    }
+
+    /**
+     * Get the rotation of an image
+     *
+     * @return Clockwise rotation in degrees, 0 if the image was never rotated
+     */
+    public int getRotation(String archiveName, String entryName) {
+        return prefs.getInt(archiveName + SEPARATOR + entryName, 0);
+    }
+
+    /**
+     * Remove the rotations of all images of an archive
+     */
+    public void removeRotations(String archiveName) {
+        String prefix = archiveName + SEPARATOR;
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Move the rotations of an archive's images to another archive name, keeping
+     * rotations the target already has
+     */
+    public void moveRotations(String fromArchiveName, String toArchiveName) {
+        if (fromArchiveName.equals(toArchiveName)) {
+            return;
+        }
+        String prefix = fromArchiveName + SEPARATOR;
+        String targetPrefix = toArchiveName + SEPARATOR;
+        SharedPreferences.Editor editor = prefs.edit();
+        Map<String, ?> all = prefs.getAll();
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix) || !(entry.getValue() instanceof Integer)) {
+                continue;
+            }
+            String targetKey = targetPrefix + key.substring(prefix.length());
+            if (!all.containsKey(targetKey)) {
+                editor.putInt(targetKey, (Integer) entry.getValue());
+            }
+            editor.remove(key);
+        }
+        editor.apply();
+    }
+}
@@ -0,0 +1,374 @@
+package com.bitifyware.zipviewer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent store for encoded gallery thumbnails in the app's private cache dir
+ * All thumbnails are packed into a single data file with an append-only offset
+ * table next to it, instead of thousands of small files. When the pack is full it is
+ * compacted: the most recently used thumbnails are copied to a new pack, in order of
+ * use, and the rest is dropped. Entries are keyed by
+ * content (CRC and uncompressed size), so identical images in different archives
+ * share one thumbnail. Entries without a usable CRC are keyed by archive identity
+ * and entry name instead. Thumbnails of encrypted entries are never stored: they
+ * would show the content without the password, so they stay in memory only.
+ */
+public class ThumbnailDiskCache {
+
+    // Bump when the thumbnail format or size changes to discard old data
+    // Version 2 no longer holds thumbnails of encrypted entries
+    private static final int FORMAT_VERSION = 2;
+    private static final int INDEX_MAGIC = 0x5A565443; // "ZVTC"
+
+    // Once the pack grows past this size it is compacted
+    private static final long MAX_PACK_SIZE = 128L * 1024 * 1024;
+    // Bytes of recently used thumbnails kept by a compaction
+    private static final long COMPACTED_PACK_SIZE = MAX_PACK_SIZE / 2;
+
+    private static final int JPEG_QUALITY = 85;
+
+    private static ThumbnailDiskCache instance;
+
+    private final File packFile;
+    private final File indexFile;
+    private final DecodePolicy decodePolicy;
+    // In order of use, least recently used first
+    private final Map<String, long[]> offsets = new LinkedHashMap<>(16, 0.75f, true);
+    private FileChannel packChannel;
+    private DataOutputStream indexOutput;
+    private long packSize;
+
+    public static synchronized ThumbnailDiskCache getInstance(Context context) {
+        if (instance == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), "thumbnails");
+            instance = new ThumbnailDiskCache(dir, DecodePolicy.getInstance(context));
+        }
+        return instance;
+    }
+
+    private ThumbnailDiskCache(File dir, DecodePolicy decodePolicy) {
+        this.decodePolicy = decodePolicy;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        packFile = new File(dir, "thumbnails.pack");
+        indexFile = new File(dir, "thumbnails.idx");
+    }
+
+    /**
+     * Build the cache key for an archive entry
+     *
+     * @return The key, or null for encrypted entries which must not be stored
+     */
+    public static String keyFor(File archiveFile, ArchiveIndex.Entry entry) {
+        if (entry.isEncrypted()) {
+            return null;
+        }
+        long crc = entry.getCrc();
+        long size = entry.getUncompressedSize();
+        if (crc != 0) {
+            return "c:" + Long.toHexString(crc) + ":" + size;
+        }
+        return "a:" + archiveFile.getName() + ":" + InPlaceArchive.length(archiveFile) + ":"
+                + InPlaceArchive.lastModified(archiveFile)
+                + ":" + entry.getName() + ":" + size;
+    }
+
+    /**
+     * Read a thumbnail from the cache
+     *
+     * @param key Key from keyFor(), null is never cached
+     * @return The decoded thumbnail, or null if it isn't cached
+     */
+    public Bitmap get(String key) {
+        if (key == null) {
+            return null;
+        }
+        long[] location;
+        FileChannel channel;
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return null;
+            }
+            location = offsets.get(key);
+            channel = packChannel;
+        }
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            byte[] data = new byte[(int) location[1]];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = location[0];
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return null;
+                }
+                position += read;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inPreferredConfig = decodePolicy.getThumbnailConfig(options.outMimeType);
+            return BitmapPool.getInstance().decodeByteArray(data, 0, data.length, options);
+        } catch (IOException e) {
+            // Pack was reset concurrently or can't be read, treat as a miss
+            return null;
+        }
+    }
+
+    /**
+     * @return true if a thumbnail is stored under the key, without reading it
+     */
+    public synchronized boolean contains(String key) {
+        return key != null && ensureOpen() && offsets.containsKey(key);
+    }
+
+    /**
+     * Encode a thumbnail and append it to the cache
+     *
+     * @param key Key from keyFor(), nothing is stored for null
+     */
+    public void put(String key, Bitmap thumbnail) {
+        if (key == null) {
+            return;
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        Bitmap.CompressFormat format = thumbnail.hasAlpha()
+                ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        if (!thumbnail.compress(format, JPEG_QUALITY, encoded)) {
+            return;
+        }
+        byte[] data = encoded.toByteArray();
+
+        synchronized (this) {
+            if (!ensureOpen() || offsets.containsKey(key)) {
+                return;
+            }
+            try {
+                if (packSize + data.length > MAX_PACK_SIZE) {
+                    compact();
+                }
+                // Write the data before its index record, so a crash can only leave
+                // unreferenced bytes behind and never a dangling record
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long position = packSize;
+                while (buffer.hasRemaining()) {
+                    position += packChannel.write(buffer, position);
+                }
+                writeRecord(indexOutput, key, packSize, data.length);
+                indexOutput.flush();
+                offsets.put(key, new long[]{packSize, data.length});
+                packSize += data.length;
+            } catch (IOException e) {
+                // Cache is best effort, start over on the next write
+                close();
+                packFile.delete();
+                indexFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Open the pack and load the offset table if that hasn't happened yet
+     *
+     * @return true if the cache is usable
+     */
+    private boolean ensureOpen() {
+        if (packChannel != null) {
+            return true;
+        }
+        try {
+            packSize = packFile.length();
+            long validIndexLength = loadIndex();
+            if (validIndexLength < 0) {
+                reset();
+                return packChannel != null;
+            }
+            // Drop a partially written trailing record
+            try (RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+                index.setLength(validIndexLength);
+            }
+            packChannel = new RandomAccessFile(packFile, "rw").getChannel();
+            indexOutput = new DataOutputStream(new FileOutputStream(indexFile, true));
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Read the offset table into memory
+     *
+     * @return Length of the valid part of the index file, or -1 if it must be rebuilt
+     */
+    private long loadIndex() throws IOException {
+        offsets.clear();
+        if (!indexFile.exists() || !packFile.exists()) {
+            return -1;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != FORMAT_VERSION) {
+                return -1;
+            }
+            long validLength = 8;
+            while (true) {
+                String key;
+                long offset;
+                int length;
+                int keyLength;
+                try {
+                    keyLength = input.readUnsignedShort();
+                    byte[] keyBytes = new byte[keyLength];
+                    input.readFully(keyBytes);
+                    key = new String(keyBytes, StandardCharsets.UTF_8);
+                    offset = input.readLong();
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                if (offset < 0 || length <= 0 || offset + length > packSize) {
+                    return validLength;
+                }
+                offsets.put(key, new long[]{offset, length});
+                validLength += 2 + keyLength + 12;
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copy the most recently used thumbnails to a new pack that replaces the current
+     * one, so a full pack doesn't cost every archive its warm thumbnails.
+     * Readers still holding the old channel see a miss.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<String, long[]>> records = new ArrayList<>(offsets.entrySet());
+        int first = records.size();
+        long keptSize = 0;
+        while (first > 0 && keptSize + records.get(first - 1).getValue()[1] <= COMPACTED_PACK_SIZE) {
+            first--;
+            keptSize += records.get(first).getValue()[1];
+        }
+
+        File newPackFile = new File(packFile.getPath() + ".tmp");
+        File newIndexFile = new File(indexFile.getPath() + ".tmp");
+        Map<String, long[]> kept = new LinkedHashMap<>();
+        long position = 0;
+        try (FileChannel target = new RandomAccessFile(newPackFile, "rw").getChannel();
+             DataOutputStream index = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(newIndexFile)))) {
+            target.truncate(0);
+            index.writeInt(INDEX_MAGIC);
+            index.writeInt(FORMAT_VERSION);
+            // Oldest first, so the order of use survives a restart
+            for (Map.Entry<String, long[]> record : records.subList(first, records.size())) {
+                long[] location = record.getValue();
+                long copied = 0;
+                while (copied < location[1]) {
+                    long transferred = packChannel.transferTo(location[0] + copied, location[1] - copied, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Cannot compact thumbnail cache");
+                    }
+                    copied += transferred;
+                }
+                writeRecord(index, record.getKey(), position, (int) location[1]);
+                kept.put(record.getKey(), new long[]{position, location[1]});
+                position += location[1];
+            }
+        } catch (IOException e) {
+            newPackFile.delete();
+            newIndexFile.delete();
+            throw e;
+        }
+
+        close();
+        // Without an index the pack is discarded on the next open, never misread
+        indexFile.delete();
+        if (!newPackFile.renameTo(packFile) || !newIndexFile.renameTo(indexFile)) {
+            newPackFile.delete();
+            newIndexFile.delete();
+            reset();
+            return;
+        }
+        offsets.clear();
+        offsets.putAll(kept);
+        packSize = position;
+        packChannel = new RandomAccessFile(packFile, "rw").getChannel();
+        indexOutput = new DataOutputStream(new FileOutputStream(indexFile, true));
+    }
+
+    private static void writeRecord(DataOutputStream output, String key, long offset, int length)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(keyBytes.length);
+        output.write(keyBytes);
+        output.writeLong(offset);
+        output.writeInt(length);
+    }
+
+    /**
+     * Discard all cached thumbnails and start with an empty pack
+     */
+    private void reset() throws IOException {
+        close();
+        offsets.clear();
+        packFile.delete();
+        indexFile.delete();
+        packSize = 0;
+        try (DataOutputStream header = new DataOutputStream(new FileOutputStream(indexFile))) {
+            header.writeInt(INDEX_MAGIC);
+            header.writeInt(FORMAT_VERSION);
+        }
+        packChannel = new RandomAccessFile(packFile, "rw").getChannel();
+        indexOutput = new DataOutputStream(new FileOutputStream(indexFile, true));
+    }
+
+    private void close() {
+        try {
+            if (packChannel != null) {
+                packChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        try {
+            if (indexOutput != null) {
+                indexOutput.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        packChannel = null;
+        indexOutput = null;
+    }
+}
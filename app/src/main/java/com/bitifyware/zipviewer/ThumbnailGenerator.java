@@ -2,8 +2,15 @@ package com.bitifyware.zipviewer;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.media.ExifInterface;
 
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 
 /**
  * Utility class for generating thumbnails from images
@@ -48,6 +55,68 @@ public class ThumbnailGenerator {
         return Bitmap.createBitmap(source, 0, 0, width, height, matrix, true);
     }
 
+    /**
+     * Rotate and/or mirror a bitmap according to an EXIF orientation
+     * The result is drawn into a pooled bitmap when one fits, the source bitmap is
+     * handed to the BitmapPool if a new bitmap had to be created.
+     * 
+     * @param source The bitmap as stored in the file
+     * @param orientation One of the ExifInterface.ORIENTATION_* values
+     * @return The bitmap in display orientation
+     */
+    public static Bitmap applyOrientation(Bitmap source, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return source;
+        }
+        // Move the transformed image back to the origin
+        RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        int width = Math.round(bounds.width());
+        int height = Math.round(bounds.height());
+
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        if (config == Bitmap.Config.HARDWARE) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap oriented = bitmapPool.get(width, height, config);
+        if (oriented == null) {
+            oriented = Bitmap.createBitmap(width, height, config);
+        } else {
+            oriented.eraseColor(Color.TRANSPARENT);
+        }
+        oriented.setHasAlpha(source.hasAlpha());
+        new Canvas(oriented).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        bitmapPool.put(source);
+        return oriented;
+    }
+
     /**
      * Estimate the size of a bitmap in bytes
      * 
@@ -58,8 +127,8 @@ public class ThumbnailGenerator {
         if (bitmap == null) {
             return 0;
         }
-        // Width * Height * Bytes per pixel (4 for ARGB_8888)
-        return bitmap.getWidth() * bitmap.getHeight() * 4;
+        // Width * Height * Bytes per pixel of the bitmap config
+        return bitmap.getWidth() * bitmap.getHeight() * DecodePolicy.bytesPerPixel(bitmap.getConfig());
     }
 
     /**
@@ -81,17 +150,66 @@ public class ThumbnailGenerator {
      * @return The decoded bitmap
      */
     public static Bitmap decodeSampledBitmap(byte[] data, int reqWidth, int reqHeight) {
+        return decodeSampledBitmap(data, data.length, reqWidth, reqHeight, null, null);
+    }
+
+    /**
+     * Decode a bitmap with sample size to reduce memory usage
+     * 
+     * @param data The image data, may be a larger (pooled) buffer
+     * @param length Number of valid bytes at the start of data
+     * @param reqWidth The required width
+     * @param reqHeight The required height
+     * @param decodePolicy Policy choosing the thumbnail config, or null for ARGB_8888
+     * @param outSize Optional array that receives the original width and height
+     * @return The decoded bitmap
+     */
+    public static Bitmap decodeSampledBitmap(byte[] data, int length, int reqWidth, int reqHeight,
+                                             DecodePolicy decodePolicy, int[] outSize) {
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (outSize != null) {
+            outSize[0] = options.outWidth;
+            outSize[1] = options.outHeight;
+        }
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        if (decodePolicy != null) {
+            options.inPreferredConfig = decodePolicy.getThumbnailConfig(options.outMimeType);
+        }
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        // Decode bitmap with inSampleSize set, into a pooled bitmap if one fits
+        return BitmapPool.getInstance().decodeByteArray(data, 0, length, options);
+    }
+
+    /**
+     * Decode a bitmap from a stream with a sample size chosen from probed dimensions
+     * Unlike the byte array variant, this needs a single pass and never holds the
+     * whole encoded image in memory.
+     * 
+     * @param inputStream Stream positioned at the start of the image
+     * @param width The probed image width
+     * @param height The probed image height
+     * @param reqWidth The required width
+     * @param reqHeight The required height
+     * @param config Bitmap config chosen by the DecodePolicy
+     * @param bitmapPool Pool to take the target bitmap from, or null to allocate a new one.
+     *                   If the pooled bitmap doesn't fit the decoder throws an
+     *                   IllegalArgumentException; the stream can't be decoded again then.
+     * @return The decoded bitmap
+     */
+    public static Bitmap decodeSampledBitmap(InputStream inputStream, int width, int height,
+                                             int reqWidth, int reqHeight, Bitmap.Config config,
+                                             BitmapPool bitmapPool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        DecodePolicy.applyTo(options, config, width, height, bitmapPool);
+        return BitmapFactory.decodeStream(inputStream, null, options);
     }
 
     /**
@@ -0,0 +1,374 @@
+package com.bitifyware.zipviewer;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads gallery thumbnails from an archive on a pool of decode threads
+ * Thumbnails are requested on demand as gallery cells are bound. Requests are
+ * ordered by their distance to the visible range of the gallery: visible items
+ * first, then their neighbours, then everything else. Loaded thumbnails are kept
+ * in a memory-bounded cache; evicted entries fall back to the placeholder and are
+ * loaded again the next time they are bound. Decoded thumbnails are also written to
+ * the persistent ThumbnailDiskCache, so reopening an archive skips the decode.
+ * For JPEG entries the embedded EXIF thumbnail is shown first; a full sampled decode
+ * only replaces it later if it is too small for the gallery cells.
+ * Decodes write into bitmaps from the BitmapPool when possible; thumbnails dropped
+ * from the memory cache are handed to the listener, which returns them to the pool
+ * once no cell shows them anymore.
+ */
+public class ThumbnailLoader {
+
+    // Target thumbnail dimensions
+    private static final int THUMBNAIL_WIDTH = 300;
+    private static final int THUMBNAIL_HEIGHT = 300;
+
+    // Added to the priority of refinement decodes so they run after all first loads
+    private static final int REFINE_PRIORITY = 1 << 24;
+
+    public interface Listener {
+        /**
+         * Called on a worker thread once the thumbnail has been set on the entry
+         */
+        void onThumbnailLoaded(int position);
+
+        /**
+         * Called on a worker thread when an entry could not be read
+         */
+        void onThumbnailFailed(int position, Exception e);
+
+        /**
+         * Called when a thumbnail was evicted from the memory cache or replaced by a
+         * sharper one, on the thread that caused it. The loader doesn't use it anymore.
+         */
+        void onThumbnailEvicted(Bitmap thumbnail);
+    }
+
+    private final ArchiveSession session;
+    private final File archiveFile;
+    private final ArchiveIndex archiveIndex;
+    private final String password;
+    private final ThumbnailDiskCache diskCache;
+    private final DecodePolicy decodePolicy;
+    private volatile Listener listener;
+    private final DecodeExecutor executor = new DecodeExecutor("thumbnail");
+    private final Map<Integer, ThumbnailRequest> requests = new ConcurrentHashMap<>();
+    private final LruCache<ImageEntry, Bitmap> memoryCache;
+
+    private volatile int firstVisible = 0;
+    private volatile int lastVisible = 0;
+    private volatile int requiredSize = THUMBNAIL_WIDTH;
+
+    /**
+     * @param session The archive to read entries from, its index receives decoded image dimensions
+     * @param password Password for encrypted entries, may be null
+     * @param diskCache Persistent thumbnail store
+     * @param decodePolicy Policy choosing the thumbnail bitmap config
+     * @param listener Receiver for load results
+     */
+    public ThumbnailLoader(ArchiveSession session, String password, ThumbnailDiskCache diskCache,
+                           DecodePolicy decodePolicy, Listener listener) {
+        this.session = session;
+        this.archiveFile = session.getArchiveFile();
+        this.archiveIndex = session.getIndex();
+        this.password = password;
+        this.diskCache = diskCache;
+        this.decodePolicy = decodePolicy;
+        this.listener = listener;
+
+        // Use a sixth of the available heap for thumbnails that are kept in memory
+        int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 6, Integer.MAX_VALUE);
+        memoryCache = new LruCache<ImageEntry, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(ImageEntry key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, ImageEntry key, Bitmap oldValue, Bitmap newValue) {
+                // Don't recycle here, the bitmap may still be displayed by a cell
+                if (evicted && key.getThumbnail() == oldValue) {
+                    key.setThumbnail(null);
+                }
+                if (oldValue != newValue) {
+                    listener.onThumbnailEvicted(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Send load results to another listener, e.g. to a gallery recreated for the
+     * same archive. Results of requests made before still arrive, at the new listener.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queue the thumbnail of an entry for loading, unless it is already loaded or queued
+     */
+    public void load(int position, ImageEntry entry) {
+        if (entry.hasThumbnail() || requests.containsKey(position)) {
+            return;
+        }
+        ThumbnailRequest request = new ThumbnailRequest(position, entry);
+        requests.put(position, request);
+        entry.setThumbnailLoading(true);
+        executor.execute(request);
+    }
+
+    /**
+     * Drop the pending request for a position, e.g. because its cell was recycled.
+     * A request that is already being decoded still completes and is cached.
+     */
+    public void cancel(int position) {
+        ThumbnailRequest request = requests.remove(position);
+        if (request != null) {
+            request.cancel();
+            request.entry.setThumbnailLoading(false);
+        }
+    }
+
+    /**
+     * Update the visible range of the gallery and reorder pending work accordingly
+     */
+    public void setVisibleRange(int first, int last) {
+        if (first < 0 || last < first || (first == firstVisible && last == lastVisible)) {
+            return;
+        }
+        firstVisible = first;
+        lastVisible = last;
+        executor.reprioritize();
+    }
+
+    /**
+     * Cancel all pending work and stop the decode threads.
+     * Image dimensions learned while decoding are persisted to the archive index.
+     */
+    public void shutdown() {
+        for (ThumbnailRequest request : requests.values()) {
+            request.cancel();
+        }
+        requests.clear();
+        executor.shutdown();
+        memoryCache.evictAll();
+        new Thread(session::saveIndex).start();
+    }
+
+    /**
+     * Priority of a position: 0 while visible, otherwise growing with the distance
+     * to the visible range. Items below the viewport are slightly preferred since
+     * galleries are mostly scrolled downwards.
+     */
+    private int priorityOf(int position) {
+        int first = firstVisible;
+        int last = lastVisible;
+        if (position < first) {
+            return (first - position) * 2 + 1;
+        } else if (position > last) {
+            return (position - last) * 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Decode a thumbnail from the entry data, into a pooled bitmap if one fits
+     */
+    private Bitmap decodeThumbnail(ArchiveIndex.Entry entry) throws IOException {
+        try {
+            return decodeThumbnail(entry, BitmapPool.getInstance());
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit the decode, read the entry again into a new one
+            return decodeThumbnail(entry, null);
+        }
+    }
+
+    /**
+     * Decode a thumbnail from the entry data, honoring the EXIF orientation
+     * The image header is probed first so the sample size is known up front and the
+     * image can be decoded straight from the stream. Only formats the prober doesn't
+     * understand are read completely into a (pooled) buffer for a two-pass decode.
+     *
+     * @param bitmapPool Pool to decode into, or null to allocate a new bitmap
+     */
+    private Bitmap decodeThumbnail(ArchiveIndex.Entry entry, BitmapPool bitmapPool) throws IOException {
+        BufferPool bufferPool = BufferPool.getInstance();
+        try (InputStream inputStream = session.openEntry(entry, password)) {
+            BufferPool.Buffer header = bufferPool.readPrefix(inputStream, ImageProber.PROBE_SIZE);
+            try {
+                if (header.getLength() == 0) {
+                    return null;
+                }
+                InputStream fullStream = new SequenceInputStream(
+                        new ByteArrayInputStream(header.getData(), 0, header.getLength()), inputStream);
+                ImageProber.Info info = ImageProber.probe(header.getData(), header.getLength());
+                if (info == null || info.width <= 0 || info.height <= 0) {
+                    return decodeBuffered(entry, fullStream);
+                }
+
+                int orientation = info.format == ImageProber.FORMAT_JPEG
+                        ? ExifThumbnailReader.readOrientation(header.getData(), header.getLength())
+                        : ExifInterface.ORIENTATION_NORMAL;
+                recordDimensions(entry, info.width, info.height, orientation);
+                Bitmap thumbnail = ThumbnailGenerator.decodeSampledBitmap(
+                        fullStream, info.width, info.height, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                        decodePolicy.getThumbnailConfig(info.format), bitmapPool);
+                return thumbnail != null ? ThumbnailGenerator.applyOrientation(thumbnail, orientation) : null;
+            } finally {
+                bufferPool.release(header);
+            }
+        }
+    }
+
+    /**
+     * Fallback for images whose header couldn't be probed: read the whole entry
+     * into a pooled buffer presized from the entry size and decode from it
+     */
+    private Bitmap decodeBuffered(ArchiveIndex.Entry entry, InputStream inputStream) throws IOException {
+        BufferPool bufferPool = BufferPool.getInstance();
+        BufferPool.Buffer imageData = bufferPool.read(inputStream, entry.getUncompressedSize());
+        try {
+            int[] imageSize = new int[2];
+            Bitmap thumbnail = ThumbnailGenerator.decodeSampledBitmap(imageData.getData(),
+                    imageData.getLength(), THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, decodePolicy, imageSize);
+            if (thumbnail != null) {
+                recordDimensions(entry, imageSize[0], imageSize[1], ExifInterface.ORIENTATION_NORMAL);
+            }
+            return thumbnail;
+        } finally {
+            bufferPool.release(imageData);
+        }
+    }
+
+    /**
+     * Store the displayed dimensions of an image in the index, i.e. with width and
+     * height swapped for EXIF orientations that rotate by 90 degrees
+     */
+    private void recordDimensions(ArchiveIndex.Entry entry, int width, int height, int orientation) {
+        boolean swapped = orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+        archiveIndex.updateDimensions(entry, swapped ? height : width, swapped ? width : height);
+    }
+
+    /**
+     * Read the embedded EXIF thumbnail of a JPEG entry, only the start of the entry is read
+     */
+    private Bitmap readExifThumbnail(ArchiveIndex.Entry entry) throws IOException {
+        try (InputStream inputStream = session.openEntry(entry, password)) {
+            return ExifThumbnailReader.readThumbnail(inputStream,
+                    decodePolicy.getThumbnailConfig(ImageProber.FORMAT_JPEG));
+        }
+    }
+
+    /**
+     * Set the size in pixels of a gallery cell, used to decide whether a
+     * small embedded thumbnail is sharp enough
+     */
+    public void setRequiredSize(int requiredSize) {
+        if (requiredSize > 0) {
+            this.requiredSize = requiredSize;
+        }
+    }
+
+    /**
+     * A thumbnail is considered sharp enough if it needs at most 2x upscaling to fill a cell
+     */
+    private boolean isSharpEnough(Bitmap thumbnail) {
+        return Math.min(thumbnail.getWidth(), thumbnail.getHeight()) * 2 >= requiredSize;
+    }
+
+    private static boolean isJpeg(ArchiveIndex.Entry entry) {
+        return entry.getFormat() == ImageProber.FORMAT_JPEG;
+    }
+
+    private class ThumbnailRequest extends DecodeExecutor.Task {
+        private final int position;
+        private final ImageEntry entry;
+        // Quick thumbnail to replace with a full decode, or null for a first load
+        private final Bitmap refineFrom;
+
+        ThumbnailRequest(int position, ImageEntry entry) {
+            this(position, entry, null);
+        }
+
+        ThumbnailRequest(int position, ImageEntry entry, Bitmap refineFrom) {
+            this.position = position;
+            this.entry = entry;
+            this.refineFrom = refineFrom;
+        }
+
+        @Override
+        protected int getPriority() {
+            // Refinements wait until every pending first load is done
+            return refineFrom != null ? REFINE_PRIORITY + priorityOf(position) : priorityOf(position);
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArchiveIndex.Entry indexEntry = entry.getIndexEntry();
+                String cacheKey = ThumbnailDiskCache.keyFor(archiveFile, indexEntry);
+                if (refineFrom != null) {
+                    // Skip if the quick thumbnail was evicted or replaced meanwhile
+                    if (entry.getThumbnail() != refineFrom) {
+                        return;
+                    }
+                } else {
+                    Bitmap cached = diskCache.get(cacheKey);
+                    if (cached != null) {
+                        deliver(cached);
+                        return;
+                    }
+                    if (isJpeg(indexEntry)) {
+                        Bitmap exifThumbnail = readExifThumbnail(indexEntry);
+                        if (exifThumbnail != null) {
+                            // Store it before delivering, once cached it may be evicted and reused
+                            boolean sharpEnough = isSharpEnough(exifThumbnail);
+                            if (sharpEnough) {
+                                diskCache.put(cacheKey, exifThumbnail);
+                            }
+                            deliver(exifThumbnail);
+                            if (!sharpEnough) {
+                                ThumbnailRequest refinement = new ThumbnailRequest(position, entry, exifThumbnail);
+                                requests.put(position, refinement);
+                                executor.execute(refinement);
+                            }
+                            return;
+                        }
+                    }
+                }
+
+                Bitmap thumbnail = decodeThumbnail(indexEntry);
+                if (thumbnail != null) {
+                    diskCache.put(cacheKey, thumbnail);
+                    deliver(thumbnail);
+                }
+            } catch (Exception e) {
+                if (!isCancelled()) {
+                    listener.onThumbnailFailed(position, e);
+                }
+            } finally {
+                entry.setThumbnailLoading(false);
+                requests.remove(position, this);
+            }
+        }
+
+        private void deliver(Bitmap thumbnail) {
+            entry.setThumbnail(thumbnail);
+            memoryCache.put(entry, thumbnail);
+            listener.onThumbnailLoaded(position);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.bitifyware.zipviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drawable showing a very large image as tiles that are decoded on demand
+ * A subsampled preview bitmap is drawn first and defines the intrinsic size, so
+ * this drawable can replace the plain preview in a PhotoView without moving the zoom.
+ * On top of it, tiles at the sample level matching the current display scale are
+ * drawn for the visible part only, taken from the canvas clip bounds. Missing tiles
+ * are decoded with a BitmapRegionDecoder; until then the preview shows through.
+ * Tiles of all levels share one byte-bounded cache, so memory stays roughly
+ * constant whatever the image size.
+ */
+public class TiledImageDrawable extends Drawable {
+
+    // Tile edge in decoded pixels
+    private static final int TILE_SIZE = 512;
+
+    /**
+     * Opens the region decoder, called once on a decode thread
+     */
+    public interface RegionDecoderFactory {
+        BitmapRegionDecoder open() throws IOException;
+    }
+
+    private final Bitmap preview;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final Bitmap.Config tileConfig;
+    private final RegionDecoderFactory decoderFactory;
+    private final DecodeExecutor executor;
+    private final LruCache<String, Bitmap> tileCache;
+    private final String keyPrefix;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, TileRequest> pending = new ConcurrentHashMap<>();
+    private final Rect clipRect = new Rect();
+    private final Rect tileRect = new Rect();
+
+    private final Object decoderLock = new Object();
+    private BitmapRegionDecoder decoder;
+    private boolean opening;
+    private volatile boolean decoderFailed;
+    private volatile boolean closed;
+    private float displayScale = 1f;
+
+    /**
+     * @param preview Subsampled bitmap of the whole image
+     * @param imageWidth Full width of the image
+     * @param imageHeight Full height of the image
+     * @param tileConfig Config of the decoded tiles, from the DecodePolicy
+     * @param decoderFactory Source of the region decoder
+     * @param executor Executor for tile decodes
+     * @param tileCache Tile cache, may be shared between images with distinct key prefixes
+     * @param keyPrefix Prefix identifying this image in the tile cache
+     */
+    public TiledImageDrawable(Bitmap preview, int imageWidth, int imageHeight, Bitmap.Config tileConfig,
+                              RegionDecoderFactory decoderFactory, DecodeExecutor executor,
+                              LruCache<String, Bitmap> tileCache, String keyPrefix) {
+        this.preview = preview;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileConfig = tileConfig;
+        this.decoderFactory = decoderFactory;
+        this.executor = executor;
+        this.tileCache = tileCache;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * Set how many screen pixels a preview pixel currently covers
+     */
+    public void setDisplayScale(float displayScale) {
+        if (displayScale > 0 && displayScale != this.displayScale) {
+            this.displayScale = displayScale;
+            invalidateSelf();
+        }
+    }
+
+    public Bitmap getPreview() {
+        return preview;
+    }
+
+    /**
+     * Cancel pending tile decodes and close the region decoder
+     */
+    public void close() {
+        closed = true;
+        for (TileRequest request : pending.values()) {
+            request.cancel();
+        }
+        pending.clear();
+        synchronized (decoderLock) {
+            if (decoder != null) {
+                decoder.recycle();
+                decoder = null;
+            }
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        canvas.drawBitmap(preview, null, bounds, paint);
+
+        int sampleSize = currentSampleSize();
+        if (closed || decoderFailed || sampleSize >= (float) imageWidth / preview.getWidth()
+                || bounds.isEmpty() || !canvas.getClipBounds(clipRect) || !clipRect.intersect(bounds)) {
+            // The preview is detailed enough, or only the preview can be shown
+            cancelPendingExcept(null);
+            return;
+        }
+
+        // Visible part in image coordinates
+        float toImage = (float) imageWidth / bounds.width();
+        int left = Math.max(0, (int) ((clipRect.left - bounds.left) * toImage));
+        int top = Math.max(0, (int) ((clipRect.top - bounds.top) * toImage));
+        int right = Math.min(imageWidth, (int) Math.ceil((clipRect.right - bounds.left) * toImage));
+        int bottom = Math.min(imageHeight, (int) Math.ceil((clipRect.bottom - bounds.top) * toImage));
+
+        int tileExtent = TILE_SIZE * sampleSize;
+        Set<String> visible = new HashSet<>();
+        for (int row = top / tileExtent; row * tileExtent < bottom; row++) {
+            for (int column = left / tileExtent; column * tileExtent < right; column++) {
+                String key = keyPrefix + sampleSize + ":" + column + ":" + row;
+                Bitmap tile = tileCache.get(key);
+                if (tile == null || tile.isRecycled()) {
+                    visible.add(key);
+                    requestTile(key, sampleSize, column, row);
+                    continue;
+                }
+                int imageLeft = column * tileExtent;
+                int imageTop = row * tileExtent;
+                int imageRight = Math.min(imageWidth, imageLeft + tileExtent);
+                int imageBottom = Math.min(imageHeight, imageTop + tileExtent);
+                tileRect.set(
+                        bounds.left + Math.round(imageLeft / toImage),
+                        bounds.top + Math.round(imageTop / toImage),
+                        bounds.left + Math.round(imageRight / toImage),
+                        bounds.top + Math.round(imageBottom / toImage));
+                canvas.drawBitmap(tile, null, tileRect, paint);
+            }
+        }
+        // Tiles that scrolled out of view or belong to another level aren't needed anymore
+        cancelPendingExcept(visible);
+    }
+
+    /**
+     * @return The sample level whose tiles match the current display scale
+     */
+    private int currentSampleSize() {
+        float imagePixelsPerScreenPixel = imageWidth / (preview.getWidth() * displayScale);
+        int sampleSize = 1;
+        while (sampleSize * 2 <= imagePixelsPerScreenPixel) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void requestTile(String key, int sampleSize, int column, int row) {
+        if (pending.containsKey(key)) {
+            return;
+        }
+        TileRequest request = new TileRequest(key, sampleSize, column, row);
+        pending.put(key, request);
+        executor.execute(request);
+    }
+
+    private void cancelPendingExcept(Set<String> keep) {
+        Iterator<Map.Entry<String, TileRequest>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, TileRequest> entry = iterator.next();
+            if (keep == null || !keep.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the region decoder, opening it on first use. Opening may take a while
+     * (the entry is extracted first), so the lock isn't held meanwhile.
+     */
+    private BitmapRegionDecoder getDecoder() {
+        synchronized (decoderLock) {
+            while (opening) {
+                try {
+                    decoderLock.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            if (decoder != null || decoderFailed || closed) {
+                return decoder;
+            }
+            opening = true;
+        }
+        BitmapRegionDecoder opened = null;
+        try {
+            opened = decoderFactory.open();
+        } catch (IOException e) {
+            // Only the preview can be shown
+        }
+        synchronized (decoderLock) {
+            opening = false;
+            decoderLock.notifyAll();
+            if (opened == null) {
+                decoderFailed = true;
+            } else if (closed) {
+                opened.recycle();
+            } else {
+                decoder = opened;
+            }
+            return decoder;
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return preview.getWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return preview.getHeight();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    /**
+     * Decode of a single tile
+     */
+    private class TileRequest extends DecodeExecutor.Task {
+        private final String key;
+        private final int sampleSize;
+        private final int column;
+        private final int row;
+
+        TileRequest(String key, int sampleSize, int column, int row) {
+            this.key = key;
+            this.sampleSize = sampleSize;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        protected int getPriority() {
+            return 0;
+        }
+
+        @Override
+        public void run() {
+            Bitmap tile = null;
+            try {
+                BitmapRegionDecoder regionDecoder = getDecoder();
+                if (regionDecoder != null && !closed) {
+                    int tileExtent = TILE_SIZE * sampleSize;
+                    Rect region = new Rect(column * tileExtent, row * tileExtent,
+                            Math.min(imageWidth, (column + 1) * tileExtent),
+                            Math.min(imageHeight, (row + 1) * tileExtent));
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    options.inPreferredConfig = tileConfig;
+                    tile = regionDecoder.decodeRegion(region, options);
+                }
+            } catch (RuntimeException e) {
+                // The decoder was recycled by close(), or the region is unreadable
+            } finally {
+                pending.remove(key, this);
+            }
+            if (tile != null) {
+                tileCache.put(key, tile);
+                if (!closed) {
+                    mainHandler.post(TiledImageDrawable.this::invalidateSelf);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.bitifyware.zipviewer;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Decodes the pages around the current one before the user swipes to them
+ * The window follows the swipe direction: more pages are prefetched ahead than
+ * behind, and fast swiping widens it ahead and drops the pages behind. Prefetches
+ * that fall out of the window, e.g. because the user flung past them, are cancelled.
+ * Under memory pressure the window shrinks and grows back slowly afterwards.
+ */
+public class ViewerPrefetcher {
+
+    // Pages prefetched ahead and behind while browsing at a normal pace
+    private static final int PAGES_AHEAD = 2;
+    private static final int PAGES_BEHIND = 1;
+
+    // Pages prefetched ahead while swiping fast, nothing is kept behind then
+    private static final int FAST_PAGES_AHEAD = 4;
+
+    // Page changes closer than this count as fast swiping
+    private static final long FAST_SWIPE_MS = 400;
+
+    // Number of page changes after which a shrunk window grows by one page again
+    private static final int RECOVERY_PAGES = 8;
+
+    private final ImageViewerAdapter adapter;
+    private final Set<Integer> prefetched = new HashSet<>();
+
+    private int lastPosition = -1;
+    private long lastSelectedTime;
+    private int direction = 1;
+    private int maxWindow = FAST_PAGES_AHEAD;
+    private int pagesSinceTrim;
+
+    public ViewerPrefetcher(ImageViewerAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Update the prefetch window for a newly selected page. Call on the main thread.
+     */
+    public void onPageSelected(int position) {
+        long now = SystemClock.uptimeMillis();
+        boolean fast = lastPosition >= 0 && now - lastSelectedTime < FAST_SWIPE_MS;
+        if (lastPosition >= 0 && position != lastPosition) {
+            direction = position > lastPosition ? 1 : -1;
+        }
+        lastPosition = position;
+        lastSelectedTime = now;
+
+        if (maxWindow < FAST_PAGES_AHEAD && ++pagesSinceTrim >= RECOVERY_PAGES) {
+            maxWindow++;
+            pagesSinceTrim = 0;
+        }
+
+        int ahead = Math.min(fast ? FAST_PAGES_AHEAD : PAGES_AHEAD, maxWindow);
+        int behind = Math.min(fast ? 0 : PAGES_BEHIND, maxWindow);
+        int first = direction > 0 ? position - behind : position - ahead;
+        int last = direction > 0 ? position + ahead : position + behind;
+        cancelOutside(first, last);
+
+        // Nearest pages first, ahead before behind at the same distance
+        for (int distance = 1; distance <= Math.max(ahead, behind); distance++) {
+            if (distance <= ahead) {
+                prefetch(position + direction * distance);
+            }
+            if (distance <= behind) {
+                prefetch(position - direction * distance);
+            }
+        }
+    }
+
+    /**
+     * Shrink the prefetch window according to the memory trim level while the
+     * viewer runs. Once the UI is hidden the window is kept, only queued prefetches
+     * are dropped, so returning to the app doesn't start with prefetching off.
+     */
+    public void onTrimMemory(int level) {
+        if (level > ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // UI_HIDDEN and the background levels
+            shutdown();
+            return;
+        }
+        int window;
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            window = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            window = 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            window = PAGES_AHEAD;
+        } else {
+            return;
+        }
+        if (window < maxWindow) {
+            maxWindow = window;
+        }
+        pagesSinceTrim = 0;
+        if (lastPosition >= 0) {
+            cancelOutside(lastPosition - maxWindow, lastPosition + maxWindow);
+        }
+    }
+
+    /**
+     * Cancel all pending prefetches
+     */
+    public void shutdown() {
+        cancelOutside(0, -1);
+    }
+
+    private void prefetch(int position) {
+        prefetched.add(position);
+        adapter.prefetch(position);
+    }
+
+    private void cancelOutside(int first, int last) {
+        Iterator<Integer> iterator = prefetched.iterator();
+        while (iterator.hasNext()) {
+            int position = iterator.next();
+            if (position < first || position > last) {
+                // A decode that already started runs to completion and is cached
+                adapter.cancelPrefetch(position);
+                iterator.remove();
+            }
+        }
+    }
+}